@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2011-2012 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of Spydroid (http://code.google.com/p/spydroid-ipcamera/)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.http;
+
+import net.majorkernelpanic.streaming.rtp.RtpMetrics;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.MethodNotSupportedException;
+import org.apache.http.entity.ContentProducer;
+import org.apache.http.entity.EntityTemplate;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.Locale;
+
+/**
+ * Exports the counters and histograms of the RTP streams being sent, in the Prometheus
+ * text format, so that a monitoring system can tell whether a stream is limited by the
+ * CPU, the encoder or the network.
+ *
+ * @see RtpMetrics
+ */
+public class ModMetrics implements HttpRequestHandler {
+
+    /**
+     * Path scraped by the monitoring system.
+     */
+    public static final String PATTERN = "/metrics";
+
+    public ModMetrics(TinyHttpServer server) {
+        super();
+    }
+
+    public void handle(
+            final HttpRequest request,
+            final HttpResponse response,
+            final HttpContext context) throws HttpException, IOException {
+        final String method = request.getRequestLine().getMethod().toUpperCase(Locale.ENGLISH);
+        if (!method.equals("GET") && !method.equals("HEAD")) {
+            throw new MethodNotSupportedException(method + " method not supported");
+        }
+        final StringBuilder metrics = new StringBuilder(4096);
+        RtpMetrics.write(metrics);
+        final EntityTemplate body = new EntityTemplate(new ContentProducer() {
+            public void writeTo(final OutputStream outstream) throws IOException {
+                OutputStreamWriter writer = new OutputStreamWriter(outstream, "UTF-8");
+                writer.write(metrics.toString());
+                writer.flush();
+            }
+        });
+        response.setStatusCode(HttpStatus.SC_OK);
+        body.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+        response.setEntity(body);
+    }
+}
@@ -166,7 +166,8 @@ public class TinyHttpServer extends Service {
     protected String[] MODULES = new String[]{
             "ModOnvifServer",
             "ModAssetServer",
-            "ModInternationalization"
+            "ModInternationalization",
+            "ModMetrics"
     };
 
     protected int mHttpPort = DEFAULT_HTTP_PORT;
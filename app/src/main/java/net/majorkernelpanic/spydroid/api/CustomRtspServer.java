@@ -9,6 +9,8 @@ public class CustomRtspServer extends RtspServer {
         // 如果打开RTSP server之后，我们就可以直接通过vlc来查看rtsp视频流了
         // 我们这里将RTSP再设置为默认打开.
         mEnabled = true;
+        // The Session of the default URI, the one ONVIF clients are given, is configured when the server starts
+        mWarmUpUri = "rtsp://127.0.0.1/";
     }
 }
 
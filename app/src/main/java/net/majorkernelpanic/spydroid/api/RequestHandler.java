@@ -161,7 +161,7 @@ public class RequestHandler {
             response.append("{\"streamAudio\":" + settings.getBoolean("stream_audio", false) + ",");
             response.append("\"audioEncoder\":\"" + (application.audioEncoder == SessionBuilder.AUDIO_AMRNB ? "AMR-NB" : "AAC") + "\",");
             response.append("\"streamVideo\":" + settings.getBoolean("stream_video", true) + ",");
-            response.append("\"videoEncoder\":\"" + (application.videoEncoder == SessionBuilder.VIDEO_H263 ? "H.263" : "H.264") + "\",");
+            response.append("\"videoEncoder\":\"" + (application.videoEncoder == SessionBuilder.VIDEO_H263 ? "H.263" : application.videoEncoder == SessionBuilder.VIDEO_H265 ? "H.265" : "H.264") + "\",");
             response.append("\"videoResolution\":\"" + application.videoQuality.resX + "x" + application.videoQuality.resY + "\",");
             response.append("\"videoFramerate\":\"" + application.videoQuality.framerate + " fps\",");
             response.append("\"videoBitrate\":\"" + application.videoQuality.bitrate / 1000 + " kbps\"}");
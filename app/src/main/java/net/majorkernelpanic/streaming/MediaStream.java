@@ -26,6 +26,8 @@ import java.util.Random;
 
 import net.majorkernelpanic.streaming.audio.AudioStream;
 import net.majorkernelpanic.streaming.rtp.AbstractPacketizer;
+import net.majorkernelpanic.streaming.rtp.InterleavedOutput;
+import net.majorkernelpanic.streaming.rtp.RtpDestination;
 import net.majorkernelpanic.streaming.video.VideoStream;
 
 import android.annotation.SuppressLint;
@@ -149,6 +151,47 @@ public abstract class MediaStream implements Stream {
         mTTL = ttl;
     }
 
+    /**
+     * Adds a receiver to the stream. All receivers share the encoder and the packetizer
+     * of the stream, but each of them gets its own SSRC, sequence numbers and RTCP socket.
+     * Receivers can be added before or while streaming.
+     *
+     * @param dest     The destination address of the receiver
+     * @param rtpPort  Destination port that will be used for RTP
+     * @param rtcpPort Destination port that will be used for RTCP
+     * @return The destination, needed to remove the receiver with {@link #removeDestination(RtpDestination)}
+     */
+    public synchronized RtpDestination addDestination(InetAddress dest, int rtpPort, int rtcpPort) throws IOException {
+        return mPacketizer.addDestination(dest, rtpPort, rtcpPort);
+    }
+
+    /**
+     * Adds a receiver that gets the packets over its RTSP connection (RTP/AVP/TCP).
+     *
+     * @param output      The output of the RTSP connection of the receiver
+     * @param rtpChannel  Interleaved channel that will be used for RTP
+     * @param rtcpChannel Interleaved channel that will be used for RTCP
+     * @return The destination, needed to remove the receiver with {@link #removeDestination(RtpDestination)}
+     */
+    public synchronized RtpDestination addDestination(InterleavedOutput output, int rtpChannel, int rtcpChannel) {
+        return mPacketizer.addDestination(output, rtpChannel, rtcpChannel);
+    }
+
+    /**
+     * Removes a receiver added with one of the addDestination() methods.
+     * The stream is not stopped, even if it has no receiver left.
+     */
+    public synchronized void removeDestination(RtpDestination destination) {
+        mPacketizer.removeDestination(destination);
+    }
+
+    /**
+     * Returns the number of receivers of the stream.
+     */
+    public int getDestinationCount() {
+        return mPacketizer.getRtpSocket().getDestinationCount();
+    }
+
     /**
      * Returns a pair of destination ports, the first one is the
      * one used for RTP and the second one is used for RTCP.
@@ -231,13 +274,16 @@ public abstract class MediaStream implements Stream {
      */
     public synchronized void start() throws IllegalStateException, IOException {
 
-        if (mDestination == null)
+        if (mDestination == null && getDestinationCount() == 0)
             throw new IllegalStateException("No destination ip address set for the stream !");
 
-        if (mRtpPort <= 0 || mRtcpPort <= 0)
+        if (mDestination != null && (mRtpPort <= 0 || mRtcpPort <= 0))
             throw new IllegalStateException("No destination ports set for the stream !");
 
         mPacketizer.setTimeToLive(mTTL);
+        if (mDestination != null) {
+            mPacketizer.setDestination(mDestination, mRtpPort, mRtcpPort);
+        }
 
         if (mMode != MODE_MEDIARECORDER_API) {
             encodeWithMediaCodec();
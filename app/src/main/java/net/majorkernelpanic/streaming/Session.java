@@ -32,6 +32,8 @@ import net.majorkernelpanic.streaming.exceptions.ConfNotSupportedException;
 import net.majorkernelpanic.streaming.exceptions.InvalidSurfaceException;
 import net.majorkernelpanic.streaming.exceptions.StorageUnavailableException;
 import net.majorkernelpanic.streaming.gl.SurfaceView;
+import net.majorkernelpanic.streaming.rtp.InterleavedOutput;
+import net.majorkernelpanic.streaming.rtp.RtpDestination;
 import net.majorkernelpanic.streaming.rtsp.RtspClient;
 import net.majorkernelpanic.streaming.video.VideoQuality;
 import net.majorkernelpanic.streaming.video.VideoStream;
@@ -499,38 +501,153 @@ public class Session {
         if (stream != null && !stream.isStreaming()) {
             try {
                 InetAddress destination = InetAddress.getByName(mDestination);
-                stream.setTimeToLive(mTimeToLive);
                 stream.setDestinationAddress(destination);
-                stream.start();
-                if (getTrack(1 - id) == null || getTrack(1 - id).isStreaming()) {
-                    postSessionStarted();
-                }
-                if (getTrack(1 - id) == null || !getTrack(1 - id).isStreaming()) {
-                    sHandler.post(mUpdateBitrate);
-                }
             } catch (UnknownHostException e) {
                 postError(ERROR_UNKNOWN_HOST, id, e);
                 throw e;
-            } catch (CameraInUseException e) {
-                postError(ERROR_CAMERA_ALREADY_IN_USE, id, e);
-                throw e;
-            } catch (StorageUnavailableException e) {
-                postError(ERROR_STORAGE_NOT_READY, id, e);
-                throw e;
-            } catch (ConfNotSupportedException e) {
-                postError(ERROR_CONFIGURATION_NOT_SUPPORTED, id, e);
-                throw e;
-            } catch (InvalidSurfaceException e) {
-                postError(ERROR_INVALID_SURFACE, id, e);
-                throw e;
+            }
+            startTrack(id, stream);
+        }
+
+    }
+
+    /**
+     * Adds a receiver to a stream and starts the stream if needed, in a syncronous manner.
+     * The receivers of a stream share its encoder, see {@link MediaStream#addDestination(InetAddress, int, int)}.
+     * Throws exceptions in addition to calling a callback.
+     *
+     * @param id       The id of the stream
+     * @param dest     The destination address of the receiver
+     * @param rtpPort  Destination port that will be used for RTP
+     * @param rtcpPort Destination port that will be used for RTCP
+     * @return The destination, needed to remove the receiver with {@link #removeDestination(int, RtpDestination)}
+     **/
+    public synchronized RtpDestination addDestination(int id, InetAddress dest, int rtpPort, int rtcpPort)
+            throws CameraInUseException,
+            StorageUnavailableException,
+            ConfNotSupportedException,
+            InvalidSurfaceException,
+            IOException {
+
+        MediaStream stream = id == 0 ? mAudioStream : mVideoStream;
+        if (stream == null) throw new IllegalStateException("No such track: " + id);
+        return startDestination(id, stream, stream.addDestination(dest, rtpPort, rtcpPort));
+    }
+
+    /**
+     * Adds a receiver that gets the packets over its RTSP connection (RTP/AVP/TCP) and 
+     * starts the stream if needed, in a syncronous manner.
+     * Throws exceptions in addition to calling a callback.
+     *
+     * @param id          The id of the stream
+     * @param output      The output of the RTSP connection of the receiver
+     * @param rtpChannel  Interleaved channel that will be used for RTP
+     * @param rtcpChannel Interleaved channel that will be used for RTCP
+     * @return The destination, needed to remove the receiver with {@link #removeDestination(int, RtpDestination)}
+     **/
+    public synchronized RtpDestination addDestination(int id, InterleavedOutput output, int rtpChannel, int rtcpChannel)
+            throws CameraInUseException,
+            StorageUnavailableException,
+            ConfNotSupportedException,
+            InvalidSurfaceException,
+            IOException {
+
+        MediaStream stream = id == 0 ? mAudioStream : mVideoStream;
+        if (stream == null) throw new IllegalStateException("No such track: " + id);
+        return startDestination(id, stream, stream.addDestination(output, rtpChannel, rtcpChannel));
+    }
+
+    /**
+     * Starts the stream of a receiver that was just added, and removes the receiver if that fails.
+     */
+    private RtpDestination startDestination(int id, MediaStream stream, RtpDestination destination)
+            throws CameraInUseException,
+            StorageUnavailableException,
+            ConfNotSupportedException,
+            InvalidSurfaceException,
+            IOException {
+
+        if (stream.isStreaming()) {
+            // The receiver would have to wait for the next key frame otherwise
+            if (stream == mVideoStream) mVideoStream.requestKeyFrame();
+        } else {
+            try {
+                startTrack(id, stream);
             } catch (IOException e) {
-                postError(ERROR_OTHER, id, e);
+                stream.removeDestination(destination);
                 throw e;
             } catch (RuntimeException e) {
-                postError(ERROR_OTHER, id, e);
+                stream.removeDestination(destination);
                 throw e;
             }
         }
+        return destination;
+    }
+
+    /**
+     * Asks the video encoder for a key frame, for a receiver that starts or resumes playing.
+     */
+    public void requestKeyFrame() {
+        VideoStream stream = mVideoStream;
+        if (stream != null && stream.isStreaming()) stream.requestKeyFrame();
+    }
+
+    /**
+     * Removes a receiver added with one of the addDestination() methods.
+     * The stream is stopped once it has no receiver left.
+     *
+     * @param id          The id of the stream
+     * @param destination The destination returned by {@link #addDestination(int, InetAddress, int, int)}
+     */
+    public synchronized void removeDestination(int id, RtpDestination destination) {
+        MediaStream stream = id == 0 ? mAudioStream : mVideoStream;
+        if (stream != null) {
+            stream.removeDestination(destination);
+            if (stream.getDestinationCount() == 0) {
+                syncStop(id);
+                if (!isStreaming()) postSessionStopped();
+            }
+        }
+    }
+
+    /**
+     * Starts a stream and posts the errors that occur to the callback.
+     */
+    private void startTrack(int id, Stream stream)
+            throws CameraInUseException,
+            StorageUnavailableException,
+            ConfNotSupportedException,
+            InvalidSurfaceException,
+            IOException {
+
+        try {
+            stream.setTimeToLive(mTimeToLive);
+            stream.start();
+            if (getTrack(1 - id) == null || getTrack(1 - id).isStreaming()) {
+                postSessionStarted();
+            }
+            if (getTrack(1 - id) == null || !getTrack(1 - id).isStreaming()) {
+                sHandler.post(mUpdateBitrate);
+            }
+        } catch (CameraInUseException e) {
+            postError(ERROR_CAMERA_ALREADY_IN_USE, id, e);
+            throw e;
+        } catch (StorageUnavailableException e) {
+            postError(ERROR_STORAGE_NOT_READY, id, e);
+            throw e;
+        } catch (ConfNotSupportedException e) {
+            postError(ERROR_CONFIGURATION_NOT_SUPPORTED, id, e);
+            throw e;
+        } catch (InvalidSurfaceException e) {
+            postError(ERROR_INVALID_SURFACE, id, e);
+            throw e;
+        } catch (IOException e) {
+            postError(ERROR_OTHER, id, e);
+            throw e;
+        } catch (RuntimeException e) {
+            postError(ERROR_OTHER, id, e);
+            throw e;
+        }
 
     }
 
@@ -30,6 +30,7 @@ import net.majorkernelpanic.streaming.audio.AudioStream;
 import net.majorkernelpanic.streaming.gl.SurfaceView;
 import net.majorkernelpanic.streaming.video.H263Stream;
 import net.majorkernelpanic.streaming.video.H264Stream;
+import net.majorkernelpanic.streaming.video.HevcStream;
 import net.majorkernelpanic.streaming.video.VideoQuality;
 import net.majorkernelpanic.streaming.video.VideoStream;
 
@@ -59,6 +60,11 @@ public class SessionBuilder {
      */
     public final static int VIDEO_H263 = 2;
 
+    /**
+     * Can be used with {@link #setVideoEncoder}, needs Android 5.0 and an HEVC encoder.
+     */
+    public final static int VIDEO_H265 = 3;
+
     /**
      * Can be used with {@link #setAudioEncoder}.
      */
@@ -149,6 +155,12 @@ public class SessionBuilder {
                     stream.setPreferences(PreferenceManager.getDefaultSharedPreferences(mContext));
                 session.addVideoTrack(stream);
                 break;
+            case VIDEO_H265:
+                HevcStream hevc = new HevcStream(mCamera);
+                if (mContext != null)
+                    hevc.setPreferences(PreferenceManager.getDefaultSharedPreferences(mContext));
+                session.addVideoTrack(hevc);
+                break;
         }
 
         if (session.getVideoTrack() != null) {
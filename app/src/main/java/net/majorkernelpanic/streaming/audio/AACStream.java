@@ -90,6 +90,7 @@ public class AACStream extends AudioStream {
 	private SharedPreferences mSettings = null;
 	private AudioRecord mAudioRecord = null;
 	private Thread mThread = null;
+	private int mMaxPacketDuration = 0;
 
 	public AACStream() {
 		super();
@@ -113,6 +114,17 @@ public class AACStream extends AudioStream {
 		}
 	}
 
+	/**
+	 * Sets how long the AAC access units sent in one RTP packet may last. By default each access 
+	 * unit is sent in its own packet, fewer packets are sent with longer packets but the audio 
+	 * is delayed a bit more.
+	 * Changes take effect next time the stream is configured.
+	 * @param duration The maximum duration of a packet in ms, 0 to send each access unit in its own packet
+	 */
+	public void setMaxPacketDuration(int duration) {
+		mMaxPacketDuration = duration;
+	}
+
 	/**
 	 * Some data (the actual sampling rate used by the phone and the AAC profile) needs to be stored once {@link #getSessionDescription()} is called.
 	 * @param prefs The SharedPreferences that will be used to store the sampling rate 
@@ -152,6 +164,11 @@ public class AACStream extends AudioStream {
 				mPacketizer = new AACLATMPacketizer();
 			}		
 		}
+		if (mPacketizer instanceof AACADTSPacketizer) {
+			((AACADTSPacketizer) mPacketizer).setMaxPacketDuration(mMaxPacketDuration);
+		} else {
+			((AACLATMPacketizer) mPacketizer).setMaxPacketDuration(mMaxPacketDuration);
+		}
 		
 
 		if (mMode == MODE_MEDIARECORDER_API) {
@@ -240,7 +257,6 @@ public class AACStream extends AudioStream {
 		mThread.start();
 
 		// The packetizer encapsulates this stream in an RTP stream and send it over the network
-		mPacketizer.setDestination(mDestination, mRtpPort, mRtcpPort);
 		mPacketizer.setInputStream(inputStream);
 		mPacketizer.start();
 
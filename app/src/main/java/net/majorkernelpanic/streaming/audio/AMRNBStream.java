@@ -37,6 +37,8 @@ import android.service.textservice.SpellCheckerService.Session;
  */
 public class AMRNBStream extends AudioStream {
 
+	private int mPacketDuration = 20;
+
 	public AMRNBStream() {
 		super();
 
@@ -56,6 +58,17 @@ public class AMRNBStream extends AudioStream {
 		
 	}
 
+	/**
+	 * Sets the duration of audio carried by each RTP packet, it is advertised in the SDP with "ptime" and "maxptime".
+	 * AMR frames last 20 ms, and by default each of them is sent in its own packet: 50 packets per second.
+	 * Fewer packets are sent with longer packets, but the audio is delayed a bit more.
+	 * Changes take effect next time the stream is configured.
+	 * @param duration The duration of a packet in ms, rounded down to a multiple of 20 ms
+	 */
+	public void setPacketDuration(int duration) {
+		mPacketDuration = duration;
+	}
+
 	/**
 	 * Starts the stream.
 	 */
@@ -70,15 +83,19 @@ public class AMRNBStream extends AudioStream {
 		super.configure();
 		mMode = MODE_MEDIARECORDER_API;
 		mQuality = mRequestedQuality.clone();
+		((AMRNBPacketizer) mPacketizer).setPacketDuration(mPacketDuration);
 	}
 	
 	/**
 	 * Returns a description of the stream using SDP. It can then be included in an SDP file.
 	 */	
 	public String getSessionDescription() {
+		int ptime = ((AMRNBPacketizer) mPacketizer).getPacketDuration();
 		return "m=audio "+String.valueOf(getDestinationPorts()[0])+" RTP/AVP 96\r\n" +
 				"a=rtpmap:96 AMR/8000\r\n" +
-				"a=fmtp:96 octet-align=1;\r\n";
+				"a=fmtp:96 octet-align=1;\r\n" +
+				"a=ptime:"+ptime+"\r\n" +
+				"a=maxptime:"+ptime+"\r\n";
 	}
 
 	@Override
@@ -91,7 +91,6 @@ public abstract class AudioStream  extends MediaStream {
 		try {
 			// mReceiver.getInputStream contains the data from the camera
 			// the mPacketizer encapsulates this stream in an RTP stream and send it over the network
-			mPacketizer.setDestination(mDestination, mRtpPort, mRtcpPort);
 			mPacketizer.setInputStream(mReceiver.getInputStream());
 			mPacketizer.start();
 			mStreaming = true;
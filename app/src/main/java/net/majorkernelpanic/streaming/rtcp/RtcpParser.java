@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.streaming.rtcp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Parses the RTCP packets sent by receivers.
+ * A compound packet is walked through and every packet we know is handed to a {@link Listener}.
+ */
+public class RtcpParser {
+
+	public static final String TAG = "RtcpParser";
+
+	/** Sender Report, receivers that also send media put their report blocks in it. */
+	public static final int PT_SR = 200;
+
+	/** Receiver Report. */
+	public static final int PT_RR = 201;
+
+	/** Transport layer feedback (RFC 4585). */
+	public static final int PT_RTPFB = 205;
+
+	/** Payload-specific feedback (RFC 4585). */
+	public static final int PT_PSFB = 206;
+
+	/** Generic NACK, FMT of a RTPFB packet (RFC 4585). */
+	public static final int FMT_NACK = 1;
+
+	/** Picture Loss Indication, FMT of a PSFB packet (RFC 4585). */
+	public static final int FMT_PLI = 1;
+
+	/** Full Intra Request, FMT of a PSFB packet (RFC 5104). */
+	public static final int FMT_FIR = 4;
+
+	/** Receives the feedback found by {@link RtcpParser#parse(ByteBuffer, Listener)}. */
+	public interface Listener {
+
+		/**
+		 * A Generic NACK: the packet pid and the packets pid+i+1 for each bit i set in blp have been lost.
+		 * @param ssrc The SSRC of the media source the receiver is talking about
+		 */
+		void onNack(int ssrc, int pid, int blp);
+
+		/**
+		 * A report block of a Receiver Report or of a Sender Report (RFC 3550 section 6.4).
+		 * @param ssrc The SSRC of the media source the receiver is talking about
+		 * @param fractionLost The fraction of packets lost since the previous report, out of 256
+		 * @param cumulativeLost The number of packets lost since the beginning of the reception
+		 * @param highestSeq The extended highest sequence number received
+		 * @param jitter The interarrival jitter in RTP timestamp units
+		 * @param lsr The middle 32 bits of the NTP timestamp of the last Sender Report received, or 0
+		 * @param dlsr The delay since that Sender Report in 1/65536 seconds
+		 */
+		void onReceiverReport(int ssrc, int fractionLost, int cumulativeLost, int highestSeq, int jitter, int lsr, int dlsr);
+
+		/**
+		 * A PLI or a FIR: the receiver cannot decode the stream until the next key frame.
+		 * @param ssrc The SSRC of the media source the receiver is talking about
+		 */
+		void onKeyFrameRequest(int ssrc);
+
+	}
+
+	/**
+	 * Parses a compound RTCP packet, between the position and the limit of the buffer.
+	 * Parsing stops at the first malformed packet.
+	 */
+	public static void parse(ByteBuffer packet, Listener listener) {
+		int offset = packet.position(), end = packet.limit();
+		while (end - offset >= 4) {
+			int first = packet.get(offset) & 0xFF;
+			// Version must be 2
+			if ((first >> 6) != 2) return;
+			int type = packet.get(offset + 1) & 0xFF;
+			int length = ((packet.getShort(offset + 2) & 0xFFFF) + 1) * 4;
+			if (offset + length > end) return;
+			int count = first & 0x1F;
+
+			if (type == PT_RR || type == PT_SR) {
+				// The report blocks follow the SSRC of the receiver, and its sender info in a SR
+				int block = offset + (type == PT_RR ? 8 : 28);
+				for (int i = 0; i < count && block + 24 <= offset + length; i++, block += 24) {
+					int lost = packet.getInt(block + 4);
+					// The cumulative number of packets lost is a signed 24 bits integer
+					int cumulativeLost = (lost << 8) >> 8;
+					listener.onReceiverReport(packet.getInt(block), lost >>> 24, cumulativeLost,
+							packet.getInt(block + 8), packet.getInt(block + 12), packet.getInt(block + 16), packet.getInt(block + 20));
+				}
+			} else if (type == PT_RTPFB && count == FMT_NACK && length >= 16) {
+				int ssrc = packet.getInt(offset + 8);
+				for (int i = offset + 12; i + 4 <= offset + length; i += 4) {
+					listener.onNack(ssrc, packet.getShort(i) & 0xFFFF, packet.getShort(i + 2) & 0xFFFF);
+				}
+			} else if (type == PT_PSFB && count == FMT_PLI && length >= 12) {
+				listener.onKeyFrameRequest(packet.getInt(offset + 8));
+			} else if (type == PT_PSFB && count == FMT_FIR) {
+				// The SSRC of the media source is in each FCI entry (8 bytes), not in the common header
+				for (int i = offset + 12; i + 8 <= offset + length; i += 8) {
+					listener.onKeyFrameRequest(packet.getInt(i));
+				}
+			}
+
+			offset += length;
+		}
+	}
+
+}
@@ -21,12 +21,12 @@
 package net.majorkernelpanic.streaming.rtcp;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
-import java.net.MulticastSocket;
-import java.nio.channels.IllegalSelectorException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 
-import android.os.SystemClock;
+import net.majorkernelpanic.streaming.rtp.InterleavedOutput;
 import android.util.Log;
 
 /**
@@ -36,13 +36,16 @@ public class SenderReport {
 
 	public static final int MTU = 1500;
 
-	private MulticastSocket usock;
-	private DatagramPacket upack;
+	private DatagramChannel channel;
+	private volatile InetSocketAddress address;
+	private volatile InterleavedOutput interleaved;
+	private int interleavedChannel;
 
 	private byte[] buffer = new byte[MTU];
+	private ByteBuffer packet = ByteBuffer.wrap(buffer);
 	private int ssrc, port = -1;
-	private int octetCount = 0, packetCount = 0;
-	private long interval, delta, now, oldnow;
+	private int octetCount = 0, packetCount = 0, reportedCount = 0;
+	private long interval, lastReport = -1, lastNtpts, lastRtpts;
 
 	public SenderReport(int ssrc) throws IOException {
 		super();
@@ -74,11 +77,11 @@ public class SenderReport {
 		/* Byte 24,25,26,27  ->  octet count			         */
 
 		try {
-			usock = new MulticastSocket();
+			channel = DatagramChannel.open();
+			channel.socket().bind(null);
 		} catch (IOException e) {
 			throw new RuntimeException(e.getMessage());
 		}
-		upack = new DatagramPacket(buffer, 1);
 
 		// By default we sent one report every 5 secconde
 		interval = 3000;
@@ -86,7 +89,9 @@ public class SenderReport {
 	}
 
 	public void close() {
-		usock.close();
+		try {
+			channel.close();
+		} catch (IOException ignore) {}
 	}
 
 	/**
@@ -101,26 +106,33 @@ public class SenderReport {
 
 	/** 
 	 * Updates the number of packets sent, and the total amount of data sent.
+	 * The reports themselves are sent by {@link #poll(long, long)}.
 	 * @param length The length of the packet 
-	 * @throws IOException 
+	 * @param ntpts The time at which the packet is sent in ns
+	 * @param rtpts The RTP timestamp of the packet
 	 **/
-	public void update(int length, long ntpts, long rtpts) throws IOException {
+	public void update(int length, long ntpts, long rtpts) {
 		packetCount += 1;
 		octetCount += length;
 		setLong(packetCount, 20, 24);
 		setLong(octetCount, 24, 28);
+		lastNtpts = ntpts;
+		lastRtpts = rtpts;
+		if (lastReport < 0) lastReport = ntpts;
+	}
 
-		now = SystemClock.elapsedRealtime();
-		delta += oldnow != 0 ? now-oldnow : 0;
-		oldnow = now;
-		if (interval>0) {
-			if (delta>=interval) {
-				// We send a Sender Report
-				send(ntpts,rtpts);
-				delta = 0;
-			}
-		}
-		
+	/**
+	 * Sends a Sender Report if the interval elapsed since the last one and packets were sent meanwhile.
+	 * Its RTP timestamp is extrapolated from the one of the last packet.
+	 * @param now The current time in ns, in the timebase of the times given to {@link #update(int, long, long)}
+	 * @param clock The clock frequency of the RTP stream
+	 */
+	public void poll(long now, long clock) throws IOException {
+		if (interval <= 0 || lastReport < 0 || packetCount == reportedCount) return;
+		if (now - lastReport < interval*1000000L) return;
+		lastReport = now;
+		reportedCount = packetCount;
+		send(now, lastRtpts + (now - lastNtpts)*clock/1000000000L);
 	}
 
 	public void setSSRC(int ssrc) {
@@ -134,8 +146,22 @@ public class SenderReport {
 
 	public void setDestination(InetAddress dest, int dport) {
 		port = dport;
-		upack.setPort(dport);
-		upack.setAddress(dest);
+		address = new InetSocketAddress(dest, dport);
+	}
+
+	/** 
+	 * Sends the reports on a channel of the RTSP connection of the receiver instead of using UDP. 
+	 * @param output The output of the RTSP connection 
+	 * @param channel The interleaved channel used for RTCP
+	 */
+	public void setInterleaved(InterleavedOutput output, int channel) {
+		this.interleavedChannel = channel;
+		this.interleaved = output;
+	}
+
+	/** Returns the UDP channel of the reports, receivers send their own RTCP packets to it. */
+	public DatagramChannel getChannel() {
+		return channel;
 	}
 
 	public int getPort() {
@@ -143,7 +169,7 @@ public class SenderReport {
 	}
 
 	public int getLocalPort() {
-		return usock.getLocalPort();
+		return channel.socket().getLocalPort();
 	}
 
 	public int getSSRC() {
@@ -158,7 +184,8 @@ public class SenderReport {
 		octetCount = 0;
 		setLong(packetCount, 20, 24);
 		setLong(octetCount, 24, 28);
-		delta = now = oldnow = 0;
+		reportedCount = 0;
+		lastReport = -1;
 	}
 	
 	private void setLong(long n, int begin, int end) {
@@ -168,6 +195,17 @@ public class SenderReport {
 		}
 	}	
 
+	/** 
+	 * Returns the middle 32 bits of the NTP timestamp that a report sent at 
+	 * that time carries, receivers echo it in the LSR field of their reports.
+	 * @param ntpts The time in ns, in the timebase of the timestamps given to {@link #update(int, long, long)}
+	 */
+	public static int compactNtp(long ntpts) {
+		long hb = ntpts/1000000000;
+		long lb = ( ( ntpts - hb*1000000000 ) * 4294967296L )/1000000000;
+		return (int) ((hb & 0xFFFF) << 16 | lb >>> 16);
+	}
+
 	/** Sends the RTCP packet over the network. */
 	private void send(long ntpts, long rtpts) throws IOException {
 		long hb = ntpts/1000000000;
@@ -175,8 +213,15 @@ public class SenderReport {
 		setLong(hb, 8, 12);
 		setLong(lb, 12, 16);
 		setLong(rtpts, 16, 20);
-		upack.setLength(28);
-		usock.send(upack);		
+		InterleavedOutput output = interleaved;
+		if (output != null) {
+			output.offer(interleavedChannel, buffer, 0, 28);
+			return;
+		}
+		if (address == null) return;
+		packet.clear();
+		packet.limit(28);
+		channel.send(packet, address);
 	}
 		
 	
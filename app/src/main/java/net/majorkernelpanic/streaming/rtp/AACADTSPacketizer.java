@@ -32,8 +32,9 @@ import android.util.Log;
  *
  *   This packetizer must be fed with an InputStream containing ADTS AAC. 
  *   AAC will basically be rewrapped in an RTP stream and sent over the network.
- *   This packetizer only implements the aac-hbr mode (High Bit-rate AAC) and
- *   each packet only carry a single and complete AAC access unit.
+ *   This packetizer only implements the aac-hbr mode (High Bit-rate AAC). A packet 
+ *   carries one or more complete AAC access units, see {@link #setMaxPacketDuration(int)},
+ *   or a fragment of an access unit too big for a single packet.
  * 
  */
 public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
@@ -42,6 +43,7 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 
 	private Thread t;
 	private int samplingRate = 8000;
+	private final AccessUnitBundle bundle = new AccessUnitBundle(MAXPACKETSIZE-rtphl);
 
 	public AACADTSPacketizer() {
 		super();
@@ -72,6 +74,15 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 		socket.setClockFrequency(samplingRate);
 	}
 
+	/** 
+	 * Sets how long the access units sent in one packet may last, several access units
+	 * are sent in the same packet if it is not 0, which is the default.
+	 * @param duration The maximum duration of a packet in ms
+	 */
+	public void setMaxPacketDuration(int duration) {
+		bundle.setMaxDuration(duration*1000000L);
+	}
+
 	public void run() {
 
 		Log.d(TAG,"AAC ADTS packetizer started !");
@@ -87,20 +98,16 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 		int frameLength, sum, length, nbau, nbpk, samplingRateIndex, profile;
 		long oldtime = SystemClock.elapsedRealtime(), now = oldtime;
 		byte[] header = new byte[8]; 
+		BitstreamReader reader = new BitstreamReader(is, 8192);
 
 		try {
 			while (!Thread.interrupted()) {
 
 				// Synchronisation: ADTS packet starts with 12bits set to 1
-				while (true) {
-					if ( (is.read()&0xFF) == 0xFF ) {
-						header[1] = (byte) is.read();
-						if ( (header[1]&0xF0) == 0xF0) break;
-					}
-				}
+				reader.skipTo(0xFFF0, 0xFFF0, 2);
 
 				// Parse adts header (ADTS packets start with a 7 or 9 byte long header)
-				fill(header, 2, 5);
+				reader.read(header, 0, 7);
 
 				// The protection bit indicates whether or not the header contains the two extra bytes
 				protection = (header[1]&0x01)>0 ? true : false;
@@ -116,7 +123,7 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 				nbpk = frameLength/MAXPACKETSIZE + 1;
 
 				// Read CRS if any
-				if (!protection) is.read(header,0,2);
+				if (!protection) reader.skip(2);
 
 				samplingRate = AACStream.AUDIO_SAMPLING_RATES[(header[2]&0x3C) >> 2];
 				profile = ( (header[2]&0xC0) >> 6 ) + 1 ;
@@ -126,6 +133,15 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 
 				//Log.d(TAG,"frameLength: "+frameLength+" protection: "+protection+" p: "+profile+" sr: "+samplingRate);
 
+				// Small enough to share a packet with the next access units
+				if (!bundle.isTooBig(frameLength)) {
+					if (!bundle.accepts(frameLength, ts)) flush();
+					reader.read(bundle.array(), bundle.add(frameLength, ts, 1024L*1000000000L/samplingRate), frameLength);
+					if (bundle.isFull()) flush();
+					continue;
+				}
+				flush();
+
 				sum = 0;
 				while (sum<frameLength) {
 
@@ -141,7 +157,7 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 						socket.markNextPacket();
 					}
 					sum += length;
-					fill(buffer, rtphl+4, length);
+					reader.read(buffer, rtphl+4, length);
 
 					// AU-headers-length field: contains the size in bits of a AU-header
 					// 13+3 = 16 bits -> 13bits for AU-size and 3bits for AU-Index / AU-Index-delta 
@@ -169,20 +185,17 @@ public class AACADTSPacketizer extends AbstractPacketizer implements Runnable {
 			e.printStackTrace();
 		} catch (InterruptedException ignore) {}
 
-		Log.d(TAG,"AAC ADTS packetizer stopped !");
+		Log.d(TAG,"AAC ADTS packetizer stopped ! ("+reader.getReadCount()+" reads for "+reader.getByteCount()+" bytes)");
 
 	}
 
-	private int fill(byte[] buffer, int offset,int length) throws IOException {
-		int sum = 0, len;
-		while (sum<length) {
-			len = is.read(buffer, offset+sum, length-sum);
-			if (len<0) {
-				throw new IOException("End of stream");
-			}
-			else sum+=len;
-		}
-		return sum;
+	/** Sends the access units of the bundle in one packet. */
+	private void flush() throws IOException, InterruptedException {
+		if (bundle.isEmpty()) return;
+		buffer = socket.requestBuffer();
+		socket.markNextPacket();
+		socket.updateTimestamp(bundle.getTimestamp());
+		send(rtphl+bundle.write(buffer, rtphl));
 	}
 
 }
@@ -21,8 +21,10 @@
 package net.majorkernelpanic.streaming.rtp;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import android.annotation.SuppressLint;
+import android.media.MediaCodec;
 import android.media.MediaCodec.BufferInfo;
 import android.os.SystemClock;
 import android.util.Log;
@@ -31,6 +33,7 @@ import android.util.Log;
  * RFC 3640.  
  * 
  * Encapsulates AAC Access Units in RTP packets as specified in the RFC 3640.
+ * Consecutive Access Units can share a packet, see {@link #setMaxPacketDuration(int)}.
  * This packetizer is used by the AACStream class in conjunction with the 
  * MediaCodec API introduced in Android 4.1 (API Level 16).       
  * 
@@ -41,6 +44,8 @@ public class AACLATMPacketizer extends AbstractPacketizer implements Runnable {
 	private final static String TAG = "AACLATMPacketizer";
 
 	private Thread t;
+	private int samplingRate = 8000;
+	private final AccessUnitBundle bundle = new AccessUnitBundle(MAXPACKETSIZE-rtphl);
 
 	public AACLATMPacketizer() {
 		super();
@@ -68,59 +73,56 @@ public class AACLATMPacketizer extends AbstractPacketizer implements Runnable {
 	}
 
 	public void setSamplingRate(int samplingRate) {
+		this.samplingRate = samplingRate;
 		socket.setClockFrequency(samplingRate);
 	}
 
+	/** 
+	 * Sets how long the Access Units sent in one packet may last, several Access Units
+	 * are sent in the same packet if it is not 0, which is the default.
+	 * @param duration The maximum duration of a packet in ms
+	 */
+	public void setMaxPacketDuration(int duration) {
+		bundle.setMaxDuration(duration*1000000L);
+	}
+
 	@SuppressLint("NewApi")
 	public void run() {
 
 		Log.d(TAG,"AAC LATM packetizer started !");
 
-		int length = 0;
-		long oldts;
+		MediaCodecInputStream codec = (MediaCodecInputStream) is;
+		ByteBuffer data;
 		BufferInfo bufferInfo;
+		int index, length;
+		long oldts;
 
 		try {
 			while (!Thread.interrupted()) {
-				buffer = socket.requestBuffer();
-				length = is.read(buffer, rtphl+4, MAXPACKETSIZE-(rtphl+4));
-				
-				if (length>0) {
-					
-					bufferInfo = ((MediaCodecInputStream)is).getLastBufferInfo();
-					//Log.d(TAG,"length: "+length+" ts: "+bufferInfo.presentationTimeUs);
-					oldts = ts;
-					ts = bufferInfo.presentationTimeUs*1000;
-					
-					// Seems to happen sometimes
-					if (oldts>ts) {
-						socket.commitBuffer();
-						continue;
-					}
-					
-					socket.markNextPacket();
-					socket.updateTimestamp(ts);
-					
-					// AU-headers-length field: contains the size in bits of a AU-header
-					// 13+3 = 16 bits -> 13bits for AU-size and 3bits for AU-Index / AU-Index-delta 
-					// 13 bits will be enough because ADTS uses 13 bits for frame length
-					buffer[rtphl] = 0;
-					buffer[rtphl+1] = 0x10; 
-
-					// AU-size
-					buffer[rtphl+2] = (byte) (length>>5);
-					buffer[rtphl+3] = (byte) (length<<3);
-
-					// AU-Index
-					buffer[rtphl+3] &= 0xF8;
-					buffer[rtphl+3] |= 0x00;
-					
-					send(rtphl+length+4);
-					
+				data = codec.readBuffer();
+				index = codec.getLastBufferIndex();
+				bufferInfo = codec.getLastBufferInfo();
+				length = data.remaining();
+				//Log.d(TAG,"length: "+length+" ts: "+bufferInfo.presentationTimeUs);
+				oldts = ts;
+				ts = bufferInfo.presentationTimeUs*1000;
+
+				// The AudioSpecificConfig is in the SDP, and timestamps going backward seem to happen sometimes
+				if (length<=0 || (bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0 || oldts>ts) {
+					codec.releasePayload(index);
+					continue;
+				}
+
+				if (bundle.isTooBig(length)) {
+					flush();
+					sendFragments(data, length);
 				} else {
-					socket.commitBuffer();
-				}		
-				
+					if (!bundle.accepts(length, ts)) flush();
+					data.get(bundle.array(), bundle.add(length, ts, 1024L*1000000000L/samplingRate), length);
+					if (bundle.isFull()) flush();
+				}
+				codec.releasePayload(index);
+
 			}
 		} catch (IOException e) {
 		} catch (ArrayIndexOutOfBoundsException e) {
@@ -132,4 +134,34 @@ public class AACLATMPacketizer extends AbstractPacketizer implements Runnable {
 
 	}
 
+	/** Sends the Access Units of the bundle in one packet. */
+	private void flush() throws IOException, InterruptedException {
+		if (bundle.isEmpty()) return;
+		buffer = socket.requestBuffer();
+		socket.markNextPacket();
+		socket.updateTimestamp(bundle.getTimestamp());
+		send(rtphl+bundle.write(buffer, rtphl));
+	}
+
+	/** Sends an Access Unit too big for a packet in several ones, the AU-size is the size of the whole Access Unit. */
+	private void sendFragments(ByteBuffer data, int length) throws IOException, InterruptedException {
+		while (data.hasRemaining()) {
+			int len = Math.min(data.remaining(), MAXPACKETSIZE-rtphl-4);
+			buffer = socket.requestBuffer();
+			socket.updateTimestamp(ts);
+			if (len == data.remaining()) socket.markNextPacket();
+
+			// AU-headers-length: a single 16 bits AU-header
+			buffer[rtphl] = 0;
+			buffer[rtphl+1] = 0x10; 
+
+			// AU-size and AU-Index
+			buffer[rtphl+2] = (byte) (length>>5);
+			buffer[rtphl+3] = (byte) (length<<3);
+
+			data.get(buffer, rtphl+4, len);
+			send(rtphl+4+len);
+		}
+	}
+
 }
@@ -26,22 +26,30 @@ import android.util.Log;
 
 /**
  * 
- *   RFC 3267.
+ *   RFC 4867 (formerly RFC 3267).
  *   
  *   AMR Streaming over RTP.
  *   
  *   Must be fed with an InputStream containing raw amr nb
  *   Stream must begin with a 6 bytes long header: "#!AMR\n", it will be skipped
  *   
+ *   Several 20 ms frames can be sent in each packet using the octet-aligned
+ *   mode: the payload header is followed by one TOC entry per frame and then
+ *   by the speech data of every frame.
+ *   
  */
 public class AMRNBPacketizer extends AbstractPacketizer implements Runnable {
 
 	public final static String TAG = "AMRNBPacketizer";
 
 	private final int AMR_HEADER_LENGTH = 6; // "#!AMR\n"
-	private static final int AMR_FRAME_HEADER_LENGTH = 1; // Each frame has a short header
-	private static final int[] sFrameBits = {95, 103, 118, 134, 148, 159, 204, 244};
+	// Modes 0 to 7, SID (8), reserved (9 to 14) and NO_DATA (15)
+	private static final int[] sFrameBits = {95, 103, 118, 134, 148, 159, 204, 244, 39, 0, 0, 0, 0, 0, 0, 0};
+	private static final int FRAME_DURATION = 20; // ms
+	// Frames of the highest mode, with their TOC entry, that fit in a packet after the payload header
+	private static final int MAX_FRAMES = (MAXPACKETSIZE-rtphl-1)/(1+(244+7)/8);
 	private int samplingRate = 8000;
+	private int framesPerPacket = 1;
 
 	private Thread t;
 
@@ -50,6 +58,22 @@ public class AMRNBPacketizer extends AbstractPacketizer implements Runnable {
 		socket.setClockFrequency(samplingRate);
 	}
 
+	/**
+	 * Sets the duration of audio carried by each packet, that is the "ptime" of the SDP.
+	 * It is rounded down to a multiple of 20 ms, the duration of an AMR frame, and
+	 * limited to the number of frames that fit in a packet, see {@link #getPacketDuration()}.
+	 * Changes take effect next time the packetizer is started.
+	 * @param duration The duration of a packet in ms
+	 */
+	public void setPacketDuration(int duration) {
+		framesPerPacket = Math.min(MAX_FRAMES, Math.max(1, duration/FRAME_DURATION));
+	}
+
+	/** Returns the duration of audio carried by each packet in ms. */
+	public int getPacketDuration() {
+		return framesPerPacket*FRAME_DURATION;
+	}
+
 	public void start() {
 		if (t==null) {
 			t = new Thread(this);
@@ -72,14 +96,15 @@ public class AMRNBPacketizer extends AbstractPacketizer implements Runnable {
 
 	public void run() {
 
-		int frameLength, frameType;
-		long now = System.nanoTime(), oldtime = now;
+		int frameLength, frameType, length;
+		int frames = framesPerPacket;
 		byte[] header = new byte[AMR_HEADER_LENGTH];
+		BitstreamReader reader = new BitstreamReader(is, 4096);
 
 		try {
 
 			// Skip raw amr header
-			fill(header,0,AMR_HEADER_LENGTH);
+			reader.read(header,0,AMR_HEADER_LENGTH);
 			
 			if (header[5] != '\n') {
 				Log.e(TAG,"Bad header ! AMR not correcty supported by the phone !");
@@ -89,50 +114,47 @@ public class AMRNBPacketizer extends AbstractPacketizer implements Runnable {
 			while (!Thread.interrupted()) {
 
 				buffer = socket.requestBuffer();
-				buffer[rtphl] = (byte) 0xF0;
 				
-				// First we read the frame header
-				fill(buffer, rtphl+1,AMR_FRAME_HEADER_LENGTH);
+				// Payload header: no codec mode request
+				buffer[rtphl] = (byte) 0xF0;
+
+				// The TOC list comes first and the speech data of every frame follows it
+				length = rtphl+1+frames;
+				for (int i=0; i<frames; i++) {
 
-				// Then we calculate the frame payload length
-				frameType = (Math.abs(buffer[rtphl + 1]) >> 3) & 0x0f;
-				frameLength = (sFrameBits[frameType]+7)/8;
+					// The header of the frame in the file is its TOC entry 
+					buffer[rtphl+1+i] = (byte) reader.read();
 
-				// And we read the payload
-				fill(buffer, rtphl+2,frameLength);
+					// Then we calculate the frame payload length
+					frameType = (buffer[rtphl+1+i] >> 3) & 0x0f;
+					frameLength = (sFrameBits[frameType]+7)/8;
 
-				//Log.d(TAG,"Frame length: "+frameLength+" frameType: "+frameType);
+					// And we read the payload
+					reader.read(buffer, length, frameLength);
+					length += frameLength;
 
-				// RFC 3267 Page 14: "For AMR, the sampling frequency is 8 kHz"
-				// FIXME: Is this really always the case ??
-				ts += 160L*1000000000L/samplingRate; //stats.average();
+					// F bit: set when another frame follows in the packet
+					if (i<frames-1) buffer[rtphl+1+i] |= 0x80;
+					else buffer[rtphl+1+i] &= 0x7F;
+
+				}
+
+				// RFC 4867 Page 14: "For AMR, the sampling frequency is 8 kHz"
+				// The timestamp of the packet is the one of its first frame
+				ts += 160L*1000000000L/samplingRate;
 				socket.updateTimestamp(ts);
 				socket.markNextPacket();
+				ts += (frames-1)*160L*1000000000L/samplingRate;
 
-				//Log.d(TAG,"expected: "+ expected + " measured: "+measured);
-				
-				send(rtphl+1+AMR_FRAME_HEADER_LENGTH+frameLength);
+				send(length);
 				
 			}
 
 		} catch (IOException e) { 
 		} catch (InterruptedException e) {}
 
-		Log.d(TAG,"AMR packetizer stopped !");
-
-	}
+		Log.d(TAG,"AMR packetizer stopped ! ("+reader.getReadCount()+" reads for "+reader.getByteCount()+" bytes)");
 
-	private int fill(byte[] buffer, int offset,int length) throws IOException {
-		int sum = 0, len;
-		while (sum<length) {
-			len = is.read(buffer, offset+sum, length-sum);
-			if (len<0) {
-				throw new IOException("End of stream");
-			}
-			else sum+=len;
-		}
-		return sum;
 	}
 
-
 }
@@ -50,6 +50,7 @@ abstract public class AbstractPacketizer {
 		ts = new Random().nextInt();
 		socket = new RtpSocket();
 		socket.setSSRC(ssrc);
+		socket.getMetrics().setName(getClass().getSimpleName());
 	}
 
 	public RtpSocket getRtpSocket() {
@@ -71,6 +72,9 @@ abstract public class AbstractPacketizer {
 
 	public void setInputStream(InputStream is) {
 		this.is = is;
+		if (is instanceof MediaCodecInputStream) {
+			((MediaCodecInputStream) is).setMetrics(socket.getMetrics());
+		}
 	}
 
 	public void setTimeToLive(int ttl) throws IOException {
@@ -87,6 +91,31 @@ abstract public class AbstractPacketizer {
 		socket.setDestination(dest, rtpPort, rtcpPort);		
 	}
 
+	/**
+	 * Adds a receiver to the stream, the packets will be sent to all of them.
+	 * @param dest The destination address of the stream
+	 * @param rtpPort Destination port that will be used for RTP
+	 * @param rtcpPort Destination port that will be used for RTCP
+	 */
+	public RtpDestination addDestination(InetAddress dest, int rtpPort, int rtcpPort) throws IOException {
+		return socket.addDestination(dest, rtpPort, rtcpPort);
+	}
+
+	/**
+	 * Adds a receiver that gets the packets over its RTSP connection.
+	 * @param output The output of the RTSP connection of the receiver
+	 * @param rtpChannel The interleaved channel used for RTP
+	 * @param rtcpChannel The interleaved channel used for RTCP
+	 */
+	public RtpDestination addDestination(InterleavedOutput output, int rtpChannel, int rtcpChannel) {
+		return socket.addDestination(output, rtpChannel, rtcpChannel);
+	}
+
+	/** Removes a receiver added with one of the addDestination() methods. */
+	public void removeDestination(RtpDestination destination) {
+		socket.removeDestination(destination);
+	}
+
 	/** Starts the packetizer. */
 	public abstract void start();
 
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+/**
+ * Gathers consecutive AAC Access Units that are sent in the same RTP packet (RFC 3640, mode AAC-hbr).
+ * <p>
+ * The payload starts with the AU-headers-length in bits, followed by a 16 bits AU-header per 
+ * Access Unit: 13 bits for the AU-size, and 3 bits for the AU-Index of the first one or the
+ * AU-Index-delta of the following ones, which is always 0 since they are consecutive.
+ * The Access Units follow the headers.
+ */
+class AccessUnitBundle {
+
+	private final int mCapacity;
+	private final byte[] mData;
+	private int[] mSizes = new int[16];
+	private int mCount = 0, mLength = 0;
+	private long mTimestamp, mNext, mDuration;
+	private long mMaxDuration = 0;
+
+	/** @param capacity The maximum size of a payload */
+	public AccessUnitBundle(int capacity) {
+		mCapacity = capacity;
+		mData = new byte[capacity];
+	}
+
+	/** 
+	 * Sets how long the Access Units of a packet may last, in ns. 
+	 * With 0, each packet carries a single Access Unit.
+	 */
+	public void setMaxDuration(long duration) {
+		mMaxDuration = duration;
+	}
+
+	public boolean isEmpty() {
+		return mCount == 0;
+	}
+
+	/** Returns the timestamp of the first Access Unit, in ns. */
+	public long getTimestamp() {
+		return mTimestamp;
+	}
+
+	/** Returns true if an Access Unit of that size is too big to share a packet with anything. */
+	public boolean isTooBig(int size) {
+		return 4 + size > mCapacity;
+	}
+
+	/** 
+	 * Returns true if the Access Unit can be added to the bundle: it fits in the packet, 
+	 * and it directly follows the last one.
+	 * @param timestamp The timestamp of the Access Unit in ns
+	 */
+	public boolean accepts(int size, long timestamp) {
+		if (mCount == 0) return !isTooBig(size);
+		return 2 + 2*(mCount+1) + mLength + size <= mCapacity && Math.abs(timestamp - mNext) < mDuration/2;
+	}
+
+	/**
+	 * Makes room for an Access Unit, {@link #accepts(int, long)} must have returned true.
+	 * @param timestamp The timestamp of the Access Unit in ns
+	 * @param duration The duration of the Access Unit in ns
+	 * @return The offset in {@link #array()} where the Access Unit must be written
+	 */
+	public int add(int size, long timestamp, long duration) {
+		if (mCount == 0) mTimestamp = timestamp;
+		if (mCount == mSizes.length) {
+			int[] sizes = new int[mCount*2];
+			System.arraycopy(mSizes, 0, sizes, 0, mCount);
+			mSizes = sizes;
+		}
+		int offset = mLength;
+		mSizes[mCount++] = size;
+		mLength += size;
+		mNext = timestamp + duration;
+		mDuration = duration;
+		return offset;
+	}
+
+	public byte[] array() {
+		return mData;
+	}
+
+	/** Returns true once the Access Units of the bundle last long enough to be sent. */
+	public boolean isFull() {
+		return mCount > 0 && mNext - mTimestamp >= mMaxDuration;
+	}
+
+	/**
+	 * Writes the payload of the packet in the buffer and empties the bundle.
+	 * @return The length of the payload
+	 */
+	public int write(byte[] buffer, int offset) {
+		int headers = 2*mCount;
+		buffer[offset] = (byte) ((headers*8) >> 8);
+		buffer[offset+1] = (byte) (headers*8);
+		for (int i=0; i<mCount; i++) {
+			buffer[offset+2+2*i] = (byte) (mSizes[i] >> 5);
+			buffer[offset+3+2*i] = (byte) (mSizes[i] << 3);
+		}
+		System.arraycopy(mData, 0, buffer, offset+2+headers, mLength);
+		int length = 2 + headers + mLength;
+		mCount = 0;
+		mLength = 0;
+		return length;
+	}
+
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the bit stream given to a packetizer in large chunks, so that parsing headers
+ * or looking for a start code does not cost a call to the InputStream for each byte.
+ * <p>
+ * The bytes read but not consumed yet are between the position and the limit of 
+ * {@link #buffer()}. They can be looked at with {@link #peek(int)} or {@link #indexOf(int, int, int, int, int)} 
+ * before being copied with {@link #read(byte[], int, int)} or discarded with {@link #skip(int)}.
+ * The buffer is not a direct one: the InputStreams of a LocalSocket or of a MediaCodec 
+ * read into arrays, a direct buffer would only add a copy.
+ */
+class BitstreamReader {
+
+	/** Reads of at least that many bytes that do not fit in the buffer go straight to the destination. */
+	private static final int DIRECT_READ = 1024;
+
+	private final InputStream mInput;
+	private ByteBuffer mBuffer;
+	private long mReads = 0, mBytes = 0;
+
+	/**
+	 * @param input The InputStream the bit stream comes from
+	 * @param capacity The initial size of the buffer, it grows if a NAL unit or a frame is bigger
+	 */
+	public BitstreamReader(InputStream input, int capacity) {
+		mInput = input;
+		mBuffer = ByteBuffer.allocate(capacity);
+		mBuffer.limit(0);
+	}
+
+	/** 
+	 * Returns the buffer holding the bytes read but not consumed yet, between its position and its limit.
+	 * They may be looked at but the position and the limit of the buffer must not be changed.
+	 */
+	public ByteBuffer buffer() {
+		return mBuffer;
+	}
+
+	/** Returns the number of bytes read but not consumed yet. */
+	public int available() {
+		return mBuffer.remaining();
+	}
+
+	/** Blocks until at least length bytes can be consumed without reading the InputStream again. */
+	public void require(int length) throws IOException {
+		if (mBuffer.remaining() >= length) return;
+		compact(length);
+		try {
+			while (mBuffer.position() < length) {
+				if (receive() < 0) throw new IOException("End of stream");
+			}
+		} finally {
+			mBuffer.flip();
+		}
+	}
+
+	/**
+	 * Reads the InputStream once, whatever it has to give.
+	 * The buffer grows when it is full.
+	 * @return The number of bytes read or -1 at the end of the stream
+	 */
+	public int fill() throws IOException {
+		compact(mBuffer.remaining() + 1);
+		try {
+			return receive();
+		} finally {
+			mBuffer.flip();
+		}
+	}
+
+	/** Returns the byte at that offset from the first byte not consumed, reading the InputStream if needed. */
+	public int peek(int offset) throws IOException {
+		require(offset + 1);
+		return mBuffer.get(mBuffer.position() + offset) & 0xFF;
+	}
+
+	/** Returns the 4 bytes at that offset from the first byte not consumed, in big-endian order. */
+	public int peekInt(int offset) throws IOException {
+		require(offset + 4);
+		return mBuffer.getInt(mBuffer.position() + offset);
+	}
+
+	/** Consumes one byte. */
+	public int read() throws IOException {
+		require(1);
+		return mBuffer.get() & 0xFF;
+	}
+
+	/** Consumes length bytes and copies them in the array, blocks until they are all read. */
+	public void read(byte[] buffer, int offset, int length) throws IOException {
+		int len = Math.min(length, mBuffer.remaining());
+		mBuffer.get(buffer, offset, len);
+		offset += len;
+		length -= len;
+		// The buffer is empty now
+		while (length >= DIRECT_READ) {
+			len = mInput.read(buffer, offset, length);
+			if (len < 0) throw new IOException("End of stream");
+			mReads++;
+			mBytes += len;
+			offset += len;
+			length -= len;
+		}
+		if (length > 0) {
+			require(length);
+			mBuffer.get(buffer, offset, length);
+		}
+	}
+
+	/** Consumes and discards length bytes. */
+	public void skip(int length) throws IOException {
+		while (length > 0) {
+			if (!mBuffer.hasRemaining()) require(1);
+			int len = Math.min(length, mBuffer.remaining());
+			mBuffer.position(mBuffer.position() + len);
+			length -= len;
+		}
+	}
+
+	/**
+	 * Looks for a pattern of one to four bytes, without consuming anything.
+	 * Reads the InputStream until the bytes up to offset to + size - 1 are available.
+	 * @param pattern The bytes looked for, in big-endian order
+	 * @param mask The bits of the pattern that have to match
+	 * @param size The size of the pattern in bytes
+	 * @param from The first offset where the pattern may start
+	 * @param to The offset after the last one where the pattern may start 
+	 * @return The offset where the pattern starts or -1 if it was not found
+	 */
+	public int indexOf(int pattern, int mask, int size, int from, int to) throws IOException {
+		if (to <= from) return -1;
+		require(to + size - 1);
+		byte[] data = mBuffer.array();
+		int base = mBuffer.arrayOffset() + mBuffer.position(), word = 0;
+		for (int i = from; i < from + size - 1; i++) {
+			word = word << 8 | data[base + i] & 0xFF;
+		}
+		for (int i = from; i < to; i++) {
+			word = word << 8 | data[base + i + size - 1] & 0xFF;
+			if ((word & mask) == pattern) return i;
+		}
+		return -1;
+	}
+
+	/** Consumes the bytes that precede the next occurrence of a pattern, see {@link #indexOf(int, int, int, int, int)}. */
+	public void skipTo(int pattern, int mask, int size) throws IOException {
+		int i, to;
+		while (true) {
+			to = Math.max(mBuffer.remaining() - size + 1, 1);
+			if ((i = indexOf(pattern, mask, size, 0, to)) >= 0) break;
+			skip(to);
+		}
+		skip(i);
+	}
+
+	/** Returns how many times the InputStream was read, to compare with the number of bytes read. */
+	public long getReadCount() {
+		return mReads;
+	}
+
+	/** Returns the number of bytes read from the InputStream. */
+	public long getByteCount() {
+		return mBytes;
+	}
+
+	/** Moves the bytes not consumed to the beginning of the buffer, which is then ready to be written. */
+	private void compact(int length) {
+		if (length > mBuffer.capacity()) {
+			ByteBuffer bigger = ByteBuffer.allocate(Math.max(length, mBuffer.capacity() * 2));
+			bigger.put(mBuffer);
+			mBuffer = bigger;
+		} else {
+			mBuffer.compact();
+		}
+	}
+
+	private int receive() throws IOException {
+		int len = mInput.read(mBuffer.array(), mBuffer.arrayOffset() + mBuffer.position(), mBuffer.remaining());
+		if (len > 0) {
+			mReads++;
+			mBytes += len;
+			mBuffer.position(mBuffer.position() + len);
+		}
+		return len;
+	}
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps a copy of the packets sent since the beginning of the last key frame (the IDR 
+ * picture and its parameter sets for H.264) so that a receiver that joins the stream 
+ * can be sent the whole group of pictures, instead of waiting for the next key frame.
+ * Only used by the Thread of the {@link RtpScheduler}.
+ */
+class GopCache {
+
+	private final int mCapacity;
+	private ByteBuffer[] mPackets = new ByteBuffer[64];
+	private long[] mTimestamps = new long[64];
+	private long mFirstNumber = -1;
+	private int mCount = 0, mSize = 0;
+	// Changes every time the packets are forgotten
+	private int mGeneration = 0;
+
+	/** @param capacity The maximum number of bytes kept */
+	public GopCache(int capacity) {
+		mCapacity = capacity;
+	}
+
+	/** 
+	 * Forgets the packets of the previous group of pictures.
+	 * @param number The number in the stream of the first packet of the key frame
+	 */
+	public void reset(long number) {
+		mGeneration++;
+		mFirstNumber = number;
+		mCount = 0;
+		mSize = 0;
+	}
+
+	/** Forgets everything until the next key frame, the group of pictures is incomplete. */
+	public void invalidate() {
+		mGeneration++;
+		mFirstNumber = -1;
+		mCount = 0;
+		mSize = 0;
+	}
+
+	/**
+	 * Copies a packet in the cache, it must follow the previous one in the stream.
+	 * @param number The number of the packet in the stream
+	 * @param payload The payload following the header or null
+	 * @param rtpts The RTP timestamp of the packet
+	 */
+	public void put(long number, byte[] header, int length, ByteBuffer payload, long rtpts) {
+		if (mFirstNumber < 0) return;
+		int size = length + (payload != null ? payload.remaining() : 0);
+		if (number != mFirstNumber + mCount || mSize + size > mCapacity) {
+			invalidate();
+			return;
+		}
+		if (mCount == mPackets.length) grow();
+		ByteBuffer packet = mPackets[mCount];
+		if (packet == null || packet.capacity() < size) {
+			packet = mPackets[mCount] = ByteBuffer.allocate(Math.max(size, RtpSocket.MTU));
+		}
+		packet.clear();
+		packet.put(header, 0, length);
+		if (payload != null) packet.put(payload);
+		packet.flip();
+		mTimestamps[mCount] = rtpts;
+		mCount++;
+		mSize += size;
+	}
+
+	/** Returns a number that changes every time the cache forgets its packets. */
+	public int getGeneration() {
+		return mGeneration;
+	}
+
+	/** Returns the number of packets in the cache. */
+	public int size() {
+		return mCount;
+	}
+
+	/** Returns the number in the stream of the first packet of the cache. */
+	public long getFirstNumber() {
+		return mFirstNumber;
+	}
+
+	/** Returns the i-th packet of the cache, its position and limit delimit it. */
+	public ByteBuffer get(int i) {
+		ByteBuffer packet = mPackets[i];
+		packet.position(0);
+		return packet;
+	}
+
+	/** Returns the original RTP timestamp of the i-th packet of the cache. */
+	public long getTimestamp(int i) {
+		return mTimestamps[i];
+	}
+
+	private void grow() {
+		ByteBuffer[] packets = new ByteBuffer[mPackets.length * 2];
+		long[] timestamps = new long[mPackets.length * 2];
+		System.arraycopy(mPackets, 0, packets, 0, mCount);
+		System.arraycopy(mTimestamps, 0, timestamps, 0, mCount);
+		mPackets = packets;
+		mTimestamps = timestamps;
+	}
+
+}
@@ -32,11 +32,18 @@ import android.util.Log;
  *   Must be fed with an InputStream containing H.263 frames.
  *   The stream must start with mpeg4 or 3gpp header, it will be skipped.
  *   
+ *   Timestamps come from the temporal reference of the picture headers
+ *   written by the encoder, not from the time it takes to read the frames.
+ *   
  */
 public class H263Packetizer extends AbstractPacketizer implements Runnable {
 
 	public final static String TAG = "H263Packetizer";
-	private Statistics stats = new Statistics();
+
+	// Picture start code: 0000 0000 0000 0000 1000 00??
+	private static final int PSC = 0x000080, PSC_MASK = 0xFFFFFC;
+	// The temporal reference is incremented every 1001/30000 s (See section 5.1.2 of ITU-T H.263)
+	private static final long TR_DURATION = 1001L*1000000000L/30000;
 
 	private Thread t;
 
@@ -66,83 +73,52 @@ public class H263Packetizer extends AbstractPacketizer implements Runnable {
 	}
 
 	public void run() {
-		long time, duration = 0;
-		int i = 0, j = 0, tr;
-		boolean firstFragment = true;
-		byte[] nextBuffer;
-		stats.reset();
+		int length, next, tr, lastTr = -1;
+		boolean firstFragment;
+		BitstreamReader reader = new BitstreamReader(is, 16384);
 
 		try { 
-			while (!Thread.interrupted()) {
-				
-				if (j==0) buffer = socket.requestBuffer();
-				socket.updateTimestamp(ts);
-				
-				// Each packet we send has a two byte long header (See section 5.1 of RFC 4629)
-				buffer[rtphl] = 0;
-				buffer[rtphl+1] = 0;
-				
-				time = System.nanoTime();
-				if (fill(rtphl+j+2,MAXPACKETSIZE-rtphl-j-2)<0) return;
-				duration += System.nanoTime() - time;
-				j = 0;
-				// Each h263 frame starts with: 0000 0000 0000 0000 1000 00??
-				// Here we search where the next frame begins in the bit stream
-				for (i=rtphl+2;i<MAXPACKETSIZE-1;i++) {
-					if (buffer[i]==0 && buffer[i+1]==0 && (buffer[i+2]&0xFC)==0x80) {
-						j=i;
-						break;
-					}
-				}
-				// Parse temporal reference
-				tr = (buffer[i+2]&0x03)<<6 | (buffer[i+3]&0xFF)>>2;
-				//Log.d(TAG,"j: "+j+" buffer: "+printBuffer(rtphl, rtphl+5)+" tr: "+tr);
-				if (firstFragment) {
-					// This is the first fragment of the frame -> header is set to 0x0400
-					buffer[rtphl] = 4;
-					firstFragment = false;
-				} else {
-					buffer[rtphl] = 0;
-				}
-				if (j>0) {
-					// We have found the end of the frame
-					stats.push(duration);
-					ts+= stats.average(); duration = 0;
-					//Log.d(TAG,"End of frame ! duration: "+stats.average());
-					// The last fragment of a frame has to be marked
-					socket.markNextPacket();
-					send(j);
-					nextBuffer = socket.requestBuffer();
-					System.arraycopy(buffer,j+2,nextBuffer,rtphl+2,MAXPACKETSIZE-j-2);
-					buffer = nextBuffer;
-					j = MAXPACKETSIZE-j-2;
-					firstFragment = true;
-				} else {
-					// We have not found the beginning of another frame
-					// The whole packet is a fragment of a frame
-					send(MAXPACKETSIZE);
-				}
-			}
-		} catch (IOException e) { 
-		} catch (InterruptedException e) {}
+			reader.skipTo(PSC, PSC_MASK, 3);
 
-		Log.d(TAG,"H263 Packetizer stopped !");
+			while (!Thread.interrupted()) {
 
-	}
+				// The reader is at the beginning of a frame, the first two bytes of the
+				// start code are not sent: the P bit replaces them (See section 6.1.1 of RFC 4629)
+				reader.skip(2);
+				firstFragment = true;
 
-	private int fill(int offset,int length) throws IOException {
+				// Parse temporal reference
+				tr = (reader.peek(0)&0x03)<<6 | reader.peek(1)>>2;
+				if (lastTr >= 0) ts += ((tr-lastTr)&0xFF)*TR_DURATION;
+				lastTr = tr;
+
+				do {
+					buffer = socket.requestBuffer();
+					socket.updateTimestamp(ts);
+
+					// Here we search where the next frame begins in the bit stream,
+					// the bytes are only copied once, from the reader to the packet
+					length = MAXPACKETSIZE-rtphl-2;
+					next = reader.indexOf(PSC, PSC_MASK, 3, 0, length+1);
+					if (next >= 0) length = next;
+
+					// Each packet we send has a two byte long header (See section 5.1 of RFC 4629)
+					// The first fragment of the frame has the P bit set: header is 0x0400
+					buffer[rtphl] = (byte) (firstFragment ? 4 : 0);
+					buffer[rtphl+1] = 0;
+					reader.read(buffer, rtphl+2, length);
 
-		int sum = 0, len;
+					// The last fragment of a frame has to be marked
+					if (next >= 0) socket.markNextPacket();
+					send(rtphl+2+length);
+					firstFragment = false;
+				} while (next < 0);
 
-		while (sum<length) {
-			len = is.read(buffer, offset+sum, length-sum);
-			if (len<0) {
-				throw new IOException("End of stream");
 			}
-			else sum+=len;
-		}
+		} catch (IOException e) { 
+		} catch (InterruptedException e) {}
 
-		return sum;
+		Log.d(TAG,"H263 Packetizer stopped ! ("+reader.getReadCount()+" reads for "+reader.getByteCount()+" bytes)");
 
 	}
 
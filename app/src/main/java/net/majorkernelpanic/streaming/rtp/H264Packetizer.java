@@ -21,15 +21,17 @@
 package net.majorkernelpanic.streaming.rtp;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import android.annotation.SuppressLint;
 import android.util.Log;
 
 /**
  *
- *   RFC 3984.
+ *   RFC 3984 and RFC 6184.
  *
  *   H.264 streaming over RTP.
+ *   Small NAL units with the same timestamp are aggregated in STAP-A packets.
  *
  *   Must be fed with an InputStream containing H.264 NAL units preceded by their length (4 bytes).
  *   The stream must start with mpeg4 or 3gpp header, it will be skipped.
@@ -47,6 +49,14 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
     byte[] header = new byte[5];
     private int count = 0;
     private int streamType = 1;
+    private long dropped = -1;
+    private BitstreamReader reader = null;
+    private long keyFrame = -1;
+    private boolean parameterSets = false;
+    // The STAP-A packet being built in buffer
+    private int stapLength = 0, stapCount = 0;
+    private long stapTs = 0;
+    private final NalUnitSplitter splitter = new NalUnitSplitter();
 
 
     public H264Packetizer() {
@@ -72,6 +82,8 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
                 t.join();
             } catch (InterruptedException e) {
             }
+            // The packets still in the FIFO may point to the output buffers of the MediaCodec
+            socket.flush(1000);
             t = null;
         }
     }
@@ -82,7 +94,7 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
     }
 
     public void run() {
-        long duration = 0, delta2 = 0;
+        long duration = 0;
         Log.d(TAG, "H264 packetizer started !");
         stats.reset();
         count = 0;
@@ -93,38 +105,24 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
         } else {
             streamType = 0;
             socket.setCacheSize(400);
+            reader = new BitstreamReader(is, 64 * 1024);
         }
 
         try {
             while (!Thread.interrupted()) {
 
+                if (streamType != 0) {
+                    // The MediaCodec gives the timestamps, there is nothing to measure
+                    sendBuffer();
+                    continue;
+                }
+
                 oldtime = System.nanoTime();
                 // We read a NAL units from the input stream and we send them
                 send();
                 // We measure how long it took to receive NAL units from the phone
                 duration = System.nanoTime() - oldtime;
 
-                // Every 3 secondes, we send two packets containing NALU type 7 (sps) and 8 (pps)
-                // Those should allow the H264 stream to be decoded even if no SDP was sent to the decoder.
-                delta2 += duration / 1000000;
-                if (delta2 > 3000) {
-                    delta2 = 0;
-                    if (sps != null) {
-                        buffer = socket.requestBuffer();
-                        socket.markNextPacket();
-                        socket.updateTimestamp(ts);
-                        System.arraycopy(sps, 0, buffer, rtphl, sps.length);
-                        super.send(rtphl + sps.length);
-                    }
-                    if (pps != null) {
-                        buffer = socket.requestBuffer();
-                        socket.updateTimestamp(ts);
-                        socket.markNextPacket();
-                        System.arraycopy(pps, 0, buffer, rtphl, pps.length);
-                        super.send(rtphl + pps.length);
-                    }
-                }
-
                 stats.push(duration);
                 // Computes the average duration of a NAL unit
                 delay = stats.average();
@@ -135,66 +133,50 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
         } catch (InterruptedException e) {
         }
 
-        Log.d(TAG, "H264 packetizer stopped !");
+        if (reader != null) {
+            Log.d(TAG, "H264 packetizer stopped ! (" + reader.getReadCount() + " reads for " + reader.getByteCount() + " bytes)");
+        } else {
+            Log.d(TAG, "H264 packetizer stopped !");
+        }
 
     }
 
     /**
      * Reads a NAL unit in the FIFO and sends it.
      * If it is too big, we split it in FU-A units (RFC 3984).
+     * NAL units output by a MediaCodec are sent by {@link #sendBuffer()} instead.
      */
     @SuppressLint("NewApi")
     private void send() throws IOException, InterruptedException {
         int sum = 1, len = 0, type;
 
-        if (streamType == 0) {
-            // NAL units are preceeded by their length, we parse the length
-            fill(header, 0, 5);
-            ts += delay;
-            naluLength = header[3] & 0xFF | (header[2] & 0xFF) << 8 | (header[1] & 0xFF) << 16 | (header[0] & 0xFF) << 24;
-            if (naluLength > 100000 || naluLength < 0) resync();
-        } else if (streamType == 1) {
-            // NAL units are preceeded with 0x00000001
-            fill(header, 0, 5);
-            ts = ((MediaCodecInputStream) is).getLastBufferInfo().presentationTimeUs * 1000L;
-            //ts += delay;
-            naluLength = is.available() + 1;
-            if (!(header[0] == 0 && header[1] == 0 && header[2] == 0)) {
-                // Turns out, the NAL units are not preceeded with 0x00000001
-                Log.e(TAG, "NAL units are not preceeded by 0x00000001");
-                streamType = 2;
-                return;
-            }
-        } else {
-            // Nothing preceededs the NAL units
-            fill(header, 0, 1);
-            header[4] = header[0];
-            ts = ((MediaCodecInputStream) is).getLastBufferInfo().presentationTimeUs * 1000L;
-            //ts += delay;
-            naluLength = is.available() + 1;
-        }
+        // NAL units are preceeded by their length, we parse the length
+        reader.read(header, 0, 5);
+        ts += delay;
+        naluLength = header[3] & 0xFF | (header[2] & 0xFF) << 8 | (header[1] & 0xFF) << 16 | (header[0] & 0xFF) << 24;
+        if (naluLength > 100000 || naluLength < 0) resync();
 
         // Parses the NAL unit type
         type = header[4] & 0x1F;
-
-        // The stream already contains NAL unit type 7 or 8, we don't need
-        // to add them to the stream ourselves
-        if (type == 7 || type == 8) {
-            Log.v(TAG, "SPS or PPS present in the stream.");
-            count++;
-            if (count > 4) {
-                sps = null;
-                pps = null;
-            }
+        checkParameterSets(type);
+        markKeyFrame(type);
+        if (type == 5) {
+            sendParameterSets();
+            flushStap();
         }
 
         //Log.d(TAG,"- Nal unit length: " + naluLength + " delay: "+delay/1000000+" type: "+type);
 
+        if (drop(header[4], naluLength)) {
+            reader.skip(naluLength - 1);
+            return;
+        }
+
         // Small NAL unit => Single NAL unit
         if (naluLength <= MAXPACKETSIZE - rtphl - 2) {
             buffer = socket.requestBuffer();
             buffer[rtphl] = header[4];
-            len = fill(buffer, rtphl + 1, naluLength - 1);
+            reader.read(buffer, rtphl + 1, naluLength - 1);
             socket.updateTimestamp(ts);
             socket.markNextPacket();
             super.send(naluLength + rtphl);
@@ -215,8 +197,8 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
                 buffer[rtphl] = header[0];
                 buffer[rtphl + 1] = header[1];
                 socket.updateTimestamp(ts);
-                if ((len = fill(buffer, rtphl + 2, naluLength - sum > MAXPACKETSIZE - rtphl - 2 ? MAXPACKETSIZE - rtphl - 2 : naluLength - sum)) < 0)
-                    return;
+                len = naluLength - sum > MAXPACKETSIZE - rtphl - 2 ? MAXPACKETSIZE - rtphl - 2 : naluLength - sum;
+                reader.read(buffer, rtphl + 2, len);
                 sum += len;
                 // Last packet before next NAL
                 if (sum >= naluLength) {
@@ -232,15 +214,214 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
         }
     }
 
-    private int fill(byte[] buffer, int offset, int length) throws IOException {
-        int sum = 0, len;
-        while (sum < length) {
-            len = is.read(buffer, offset + sum, length - sum);
-            if (len < 0) {
-                throw new IOException("End of stream");
-            } else sum += len;
+    /**
+     * Sends the next output buffer of the MediaCodec without copying it: the packets
+     * only contain slices of the buffer, which is given back to the MediaCodec 
+     * by the RtpSocket once the last of them is sent.
+     * A buffer holds an access unit, or the parameter sets, which may be made of several
+     * NAL units: an SEI and an IDR picture, or several slices for instance.
+     */
+    private void sendBuffer() throws IOException, InterruptedException {
+        MediaCodecInputStream codec = (MediaCodecInputStream) is;
+        ByteBuffer data = codec.readBuffer();
+        int index = codec.getLastBufferIndex();
+        ts = codec.getLastBufferInfo().presentationTimeUs * 1000L;
+
+        int count = splitter.split(data);
+        // The whole picture is dropped if none of its NAL units is a reference
+        int nri = 0;
+        for (int i = 0; i < count; i++) nri |= data.get(splitter.getStart(i)) & 0x60;
+        if (count == 0 || drop((byte) nri, data.remaining())) {
+            codec.releasePayload(index);
+            return;
+        }
+
+        for (int i = 0; i < count; i++) {
+            // The last packet of the last NAL unit gives the buffer back
+            sendNalUnit(data, splitter.getStart(i), splitter.getEnd(i), codec, i == count - 1 ? index : -1);
+        }
+    }
+
+    /**
+     * Sends a NAL unit of an output buffer of the MediaCodec. Small NAL units are copied in a 
+     * STAP-A packet, large ones are sent in slices of the buffer. Only the last packet of the
+     * buffer, the last one of the access unit, has the marker bit (RFC 6184 section 5.1).
+     * @param release The index of the buffer if this is its last NAL unit, -1 otherwise
+     */
+    private void sendNalUnit(ByteBuffer data, int start, int end, MediaCodecInputStream codec, int release) throws IOException, InterruptedException {
+        byte nal = data.get(start);
+        naluLength = end - start;
+        checkParameterSets(nal & 0x1F);
+        markKeyFrame(nal & 0x1F);
+        if ((nal & 0x1F) == 5) sendParameterSets();
+
+        // The buffer is shared by all its NAL units, its limit must not change
+        ByteBuffer unit = data.duplicate();
+        unit.limit(end);
+        unit.position(start);
+
+        // Small NAL unit => STAP-A, with the other small NAL units of the access unit
+        if (naluLength <= MAXPACKETSIZE - rtphl - 3) {
+            aggregate(unit);
+            if (release >= 0) flushStap(codec, release);
+            return;
+        }
+        flushStap();
+
+        // Single NAL unit
+        if (naluLength <= MAXPACKETSIZE - rtphl - 2) {
+            buffer = socket.requestBuffer();
+            socket.updateTimestamp(ts);
+            if (release >= 0) socket.markNextPacket();
+            socket.commitBuffer(rtphl, unit, codec, release);
+        }
+        // Large NAL unit => Split nal unit
+        else {
+            // FU-A indicator (NRI) and FU header (type and start bit)
+            byte indicator = (byte) ((nal & 0x60) + 28);
+            byte fu = (byte) ((nal & 0x1F) + 0x80);
+            int sum = start + 1, len;
+
+            while (sum < end) {
+                len = Math.min(end - sum, MAXPACKETSIZE - rtphl - 2);
+                buffer = socket.requestBuffer();
+                buffer[rtphl] = indicator;
+                buffer[rtphl + 1] = fu;
+                socket.updateTimestamp(ts);
+                ByteBuffer payload = data.duplicate();
+                payload.limit(sum + len);
+                payload.position(sum);
+                sum += len;
+                // Last packet before next NAL
+                if (sum >= end) {
+                    // End bit on
+                    buffer[rtphl + 1] += 0x40;
+                    if (release >= 0) socket.markNextPacket();
+                    socket.commitBuffer(rtphl + 2, payload, codec, release);
+                } else {
+                    socket.commitBuffer(rtphl + 2, payload, codec, -1);
+                }
+                // Switch start bit
+                fu = (byte) (fu & 0x7F);
+            }
+        }
+    }
+
+    /**
+     * Tells the socket where key frames begin: at the SPS or PPS that precede an IDR picture
+     * in the stream, or else at the first slice of the IDR picture.
+     */
+    private void markKeyFrame(int type) {
+        if (type == 7 || type == 8) {
+            if (!parameterSets) socket.markKeyFrame();
+            parameterSets = true;
+            return;
+        }
+        // SEI and access unit delimiters can come between the parameter sets and the IDR picture
+        if (type == 6 || type == 9) return;
+        if (type == 5 && ts != keyFrame) {
+            if (!parameterSets) socket.markKeyFrame();
+            keyFrame = ts;
+        }
+        parameterSets = false;
+    }
+
+    /**
+     * Sends the SPS (NAL unit type 7) and the PPS (type 8) right before an IDR picture,
+     * with its timestamp, unless the stream already contains them. The IDR pictures 
+     * requested for new receivers can then be decoded even if no SDP was sent to the decoder.
+     */
+    private void sendParameterSets() throws IOException, InterruptedException {
+        if (sps != null) aggregate(ByteBuffer.wrap(sps));
+        if (pps != null) aggregate(ByteBuffer.wrap(pps));
+    }
+
+    /** Returns true if a NAL unit of that length still fits in the STAP-A packet being built. */
+    private boolean fits(int length) {
+        return rtphl + (stapCount > 0 ? stapLength : 1) + 2 + length <= MAXPACKETSIZE;
+    }
+
+    /**
+     * Copies the remaining bytes of the buffer, a whole NAL unit, in the STAP-A packet being built.
+     * The packet is sent first if the NAL unit does not fit in it, {@link #flushStap()} sends the last one.
+     */
+    private void aggregate(ByteBuffer nal) throws IOException, InterruptedException {
+        int length = nal.remaining();
+        if (stapCount > 0 && (!fits(length) || stapTs != ts)) flushStap();
+        if (stapCount == 0) {
+            buffer = socket.requestBuffer();
+            buffer[rtphl] = 24;
+            stapLength = 1;
+            stapTs = ts;
+        }
+        // The STAP-A header has the F bit of any of its NAL units and their highest NRI
+        byte header = nal.get(nal.position());
+        int nri = Math.max(buffer[rtphl] & 0x60, header & 0x60);
+        buffer[rtphl] = (byte) ((buffer[rtphl] | header) & 0x80 | nri | 24);
+        buffer[rtphl + stapLength] = (byte) (length >> 8);
+        buffer[rtphl + stapLength + 1] = (byte) length;
+        nal.get(buffer, rtphl + stapLength + 2, length);
+        stapLength += length + 2;
+        stapCount++;
+    }
+
+    /** 
+     * Sends the STAP-A packet being built, as a single NAL unit packet if it only holds one.
+     * More NAL units of the same access unit follow it, it has no marker bit.
+     */
+    private void flushStap() throws IOException {
+        flushStap(null, -1);
+    }
+
+    /** 
+     * Sends the STAP-A packet being built, and has the socket give the payload back to
+     * its owner once the packet is sent if release is not -1. The packet ends the access 
+     * unit and has the marker bit in that case.
+     */
+    private void flushStap(RtpSocket.PayloadOwner owner, int release) throws IOException {
+        if (stapCount == 0) return;
+        if (stapCount == 1) {
+            stapLength -= 3;
+            System.arraycopy(buffer, rtphl + 3, buffer, rtphl, stapLength);
+        }
+        socket.updateTimestamp(stapTs);
+        if (release >= 0) socket.markNextPacket();
+        socket.commitBuffer(rtphl + stapLength, null, owner, release);
+        stapCount = 0;
+        stapLength = 0;
+    }
+
+    /** 
+     * The stream already contains NAL unit type 7 or 8, we don't need
+     * to add them to the stream ourselves.
+     */
+    private void checkParameterSets(int type) {
+        if (type == 7 || type == 8) {
+            Log.v(TAG, "SPS or PPS present in the stream.");
+            count++;
+            if (count > 4) {
+                sps = null;
+                pps = null;
+            }
+        }
+    }
+
+    /**
+     * When the FIFO of the socket is too full, we drop whole non-reference pictures (NRI = 0)
+     * instead of waiting for room: nothing depends on them, the stream stays decodable,
+     * and the room left is kept for reference pictures, which are never cut in half.
+     * @param nal The header of the NAL unit
+     * @return true if the NAL unit must be dropped 
+     */
+    private boolean drop(byte nal, int naluLength) {
+        if ((nal & 0x60) != 0) return false;
+        int packets = naluLength <= MAXPACKETSIZE - rtphl - 2 ? 1 : (naluLength - 1 + MAXPACKETSIZE - rtphl - 3) / (MAXPACKETSIZE - rtphl - 2);
+        if (ts == dropped || socket.isCongested(packets)) {
+            // The other slices of the same picture are dropped too
+            dropped = ts;
+            return true;
         }
-        return sum;
+        return false;
     }
 
     private void resync() throws IOException {
@@ -254,7 +435,7 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
             header[1] = header[2];
             header[2] = header[3];
             header[3] = header[4];
-            header[4] = (byte) is.read();
+            header[4] = (byte) reader.read();
 
             type = header[4] & 0x1F;
 
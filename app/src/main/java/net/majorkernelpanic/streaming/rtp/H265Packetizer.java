@@ -0,0 +1,402 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import android.util.Log;
+
+/**
+ *
+ *   RFC 7798.
+ *
+ *   H.265 (HEVC) streaming over RTP.
+ *
+ *   Fed with the output of a MediaCodec, or with any InputStream containing an Annex B
+ *   elementary stream, a recorded .h265 file for instance. In the second case the timestamps
+ *   are derived from the frame rate given to {@link #setFrameRate(int)}.
+ *
+ *   Small NAL units of an access unit are aggregated in Aggregation Packets, large ones are
+ *   split in Fragmentation Units. DONL fields are never used (sprop-max-don-diff is 0).
+ *
+ */
+public class H265Packetizer extends AbstractPacketizer implements Runnable {
+
+    public final static String TAG = "H265Packetizer";
+
+    /** NAL unit types of RFC 7798. */
+    private static final int AP = 48, FU = 49;
+    private static final int VPS = 32, SPS = 33, PPS = 34, AUD = 35, PREFIX_SEI = 39;
+
+    private Thread t = null;
+    private byte[] vps = null, sps = null, pps = null;
+    private final NalUnitSplitter splitter = new NalUnitSplitter();
+    private long dropped = -1, keyFrame = -1;
+    private boolean parameterSets = false;
+
+    // The Aggregation Packet being built in buffer
+    private int apLength = 0, apCount = 0, apLayer, apTid;
+    private long apTs = 0;
+
+    // Elementary stream read from a plain InputStream
+    private BitstreamReader reader = null;
+    private long frameDuration = 1000000000L / 25;
+    private boolean vcl = false, firstPicture = true;
+
+    public H265Packetizer() {
+        super();
+        socket.setClockFrequency(90000);
+    }
+
+    public void start() {
+        if (t == null) {
+            t = new Thread(this);
+            t.start();
+        }
+    }
+
+    public void stop() {
+        if (t != null) {
+            try {
+                is.close();
+            } catch (IOException e) {
+            }
+            t.interrupt();
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+            }
+            // The packets still in the FIFO may point to the output buffers of the MediaCodec
+            socket.flush(1000);
+            t = null;
+        }
+    }
+
+    /**
+     * Sets the parameter sets sent before each IRAP picture, when the stream does not
+     * contain them. The ones found in the stream replace them.
+     */
+    public void setStreamParameters(byte[] vps, byte[] sps, byte[] pps) {
+        this.vps = vps;
+        this.sps = sps;
+        this.pps = pps;
+    }
+
+    /** Sets the frame rate of an elementary stream read from a plain InputStream, 25 by default. */
+    public void setFrameRate(int framerate) {
+        frameDuration = 1000000000L / framerate;
+    }
+
+    public void run() {
+        Log.d(TAG, "H265 packetizer started !");
+        socket.setCacheSize(is instanceof MediaCodecInputStream ? 0 : 400);
+        firstPicture = true;
+        vcl = false;
+        reader = is instanceof MediaCodecInputStream ? null : new BitstreamReader(is, 64 * 1024);
+
+        try {
+            while (!Thread.interrupted()) {
+                if (is instanceof MediaCodecInputStream) {
+                    sendBuffer();
+                } else {
+                    sendStream();
+                }
+            }
+        } catch (IOException e) {
+        } catch (InterruptedException e) {
+        }
+
+        if (reader != null) {
+            Log.d(TAG, "H265 packetizer stopped ! (" + reader.getReadCount() + " reads for " + reader.getByteCount() + " bytes)");
+        } else {
+            Log.d(TAG, "H265 packetizer stopped !");
+        }
+    }
+
+    /**
+     * Sends the next output buffer of the MediaCodec without copying it, the last packet
+     * gives it back to the MediaCodec once sent.
+     */
+    private void sendBuffer() throws IOException, InterruptedException {
+        MediaCodecInputStream codec = (MediaCodecInputStream) is;
+        ByteBuffer data = codec.readBuffer();
+        int index = codec.getLastBufferIndex();
+        ts = codec.getLastBufferInfo().presentationTimeUs * 1000L;
+
+        int count = splitter.split(data);
+        if (count == 0 || drop(data, count, data.remaining())) {
+            codec.releasePayload(index);
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            // A buffer holds an access unit, its last packet gives the buffer back
+            sendNalUnit(data, splitter.getStart(i), splitter.getEnd(i), i == count - 1, codec, i == count - 1 ? index : -1);
+        }
+    }
+
+    /**
+     * Reads the InputStream until at least one NAL unit is complete, that is followed by a
+     * start code, and sends the complete ones. They are copied in the packets.
+     */
+    private void sendStream() throws IOException, InterruptedException {
+        boolean end = reader.fill() < 0;
+
+        // The NAL units are sent from the buffer of the reader, which must not be moved
+        ByteBuffer stream = reader.buffer().duplicate();
+        int first = stream.position();
+        int count = splitter.split(stream);
+        // Unless the stream is over, the last NAL unit may not be complete yet
+        int complete = end ? count : count - 1;
+        // Whether a NAL unit ends its access unit depends on the first bytes of the next one
+        if (complete > 0 && complete < count && splitter.getEnd(complete) - splitter.getStart(complete) < 3) complete--;
+        for (int i = 0; i < complete; i++) {
+            int start = splitter.getStart(i), stop = splitter.getEnd(i);
+            nextAccessUnit(stream.get(start), slice(stream, i));
+            boolean last = i + 1 == count || beginsAccessUnit(stream.get(splitter.getStart(i + 1)), slice(stream, i + 1));
+            int type = (stream.get(start) >> 1) & 0x3F;
+            if (type < 32 && ts == dropped) continue;
+            if (type < 32 && isDroppable(type) && socket.isCongested(packets(stop - start))) {
+                dropped = ts;
+                continue;
+            }
+            sendNalUnit(stream, start, stop, last, null, -1);
+        }
+        flushAp(null, -1, false);
+        if (end) throw new IOException("End of stream");
+
+        // Keeps what follows the last complete NAL unit, its start code included
+        if (complete > 0) reader.skip(splitter.getEnd(complete - 1) - first);
+    }
+
+    /** Returns the byte following the header of a NAL unit of the splitter, or 0 if there is none. */
+    private byte slice(ByteBuffer stream, int i) {
+        int start = splitter.getStart(i);
+        return splitter.getEnd(i) - start > 2 ? stream.get(start + 2) : 0;
+    }
+
+    /**
+     * Returns true if a NAL unit of an elementary stream begins a new access unit:
+     * a VPS, SPS, PPS, AUD or prefix SEI following a picture, or the first slice of a picture.
+     * @param slice The byte following the header of the NAL unit
+     */
+    private boolean beginsAccessUnit(byte header, byte slice) {
+        int type = (header >> 1) & 0x3F;
+        if (type < 32) {
+            // first_slice_segment_in_pic_flag
+            return (slice & 0x80) != 0 && vcl;
+        }
+        return vcl && (type == VPS || type == SPS || type == PPS || type == AUD || type == PREFIX_SEI);
+    }
+
+    /** Advances the timestamp when a NAL unit of an elementary stream begins a new access unit. */
+    private void nextAccessUnit(byte header, byte slice) {
+        int type = (header >> 1) & 0x3F;
+        boolean first = beginsAccessUnit(header, slice);
+        if (type < 32) vcl = true;
+        else if (first) vcl = false;
+        if (first) {
+            if (!firstPicture) ts += frameDuration;
+            firstPicture = false;
+        }
+    }
+
+    /**
+     * Sends a NAL unit. Small NAL units are copied in an Aggregation Packet with the other
+     * small NAL units of the access unit, large ones are split in Fragmentation Units.
+     * Only the last packet of an access unit has the marker bit (RFC 7798 section 4.1).
+     * @param last True if the NAL unit is the last one of its access unit
+     * @param codec The MediaCodec the buffer belongs to, or null to copy the NAL unit in the packets
+     * @param release The index of the buffer if this is its last NAL unit, -1 otherwise
+     */
+    private void sendNalUnit(ByteBuffer data, int start, int end, boolean last, MediaCodecInputStream codec, int release) throws IOException, InterruptedException {
+        int length = end - start;
+        if (length < 2) return;
+        byte h0 = data.get(start), h1 = data.get(start + 1);
+        int type = (h0 >> 1) & 0x3F;
+
+        if (type == VPS || type == SPS || type == PPS) {
+            // The parameter sets of the stream replace the ones of the SDP
+            byte[] set = new byte[length];
+            for (int i = 0; i < length; i++) set[i] = data.get(start + i);
+            if (type == VPS && !Arrays.equals(set, vps)) vps = set;
+            else if (type == SPS && !Arrays.equals(set, sps)) sps = set;
+            else if (type == PPS && !Arrays.equals(set, pps)) pps = set;
+            if (!parameterSets) socket.markKeyFrame();
+            parameterSets = true;
+        } else if (type >= 16 && type <= 23) {
+            // An IRAP picture, the receivers need the parameter sets to decode it
+            if (ts != keyFrame && !parameterSets) {
+                socket.markKeyFrame();
+                sendParameterSets();
+            }
+            keyFrame = ts;
+            parameterSets = false;
+        } else if (type < 32) {
+            parameterSets = false;
+        }
+
+        // The buffer is shared by all its NAL units, its limit must not change
+        ByteBuffer unit = data.duplicate();
+        unit.limit(end);
+        unit.position(start);
+
+        // Small NAL unit => Aggregation Packet
+        if (length <= MAXPACKETSIZE - rtphl - 4) {
+            aggregate(unit);
+            if (last) flushAp(codec, release, true);
+            return;
+        }
+        flushAp(null, -1, false);
+
+        // Single NAL unit packet
+        if (length <= MAXPACKETSIZE - rtphl) {
+            buffer = socket.requestBuffer();
+            socket.updateTimestamp(ts);
+            if (last) socket.markNextPacket();
+            commit(0, unit, codec, release);
+            return;
+        }
+
+        // Fragmentation Units: payload header with type 49, then FU header with S, E and the type
+        int sum = start + 2, len;
+        byte fu = (byte) (type | 0x80);
+        while (sum < end) {
+            len = Math.min(end - sum, MAXPACKETSIZE - rtphl - 3);
+            buffer = socket.requestBuffer();
+            buffer[rtphl] = (byte) ((h0 & 0x81) | (FU << 1));
+            buffer[rtphl + 1] = h1;
+            socket.updateTimestamp(ts);
+            ByteBuffer payload = data.duplicate();
+            payload.limit(sum + len);
+            payload.position(sum);
+            sum += len;
+            if (sum >= end) {
+                // End bit on
+                fu |= 0x40;
+                buffer[rtphl + 2] = fu;
+                if (last) socket.markNextPacket();
+                commit(3, payload, codec, release);
+            } else {
+                buffer[rtphl + 2] = fu;
+                commit(3, payload, codec, -1);
+            }
+            // Switch start bit
+            fu = (byte) (fu & 0x7F);
+        }
+    }
+
+    /**
+     * Commits the packet in buffer, followed by the payload. The payload is a slice of
+     * an output buffer of the MediaCodec that is not copied, or is copied in the packet.
+     */
+    private void commit(int header, ByteBuffer payload, MediaCodecInputStream codec, int release) throws IOException {
+        if (codec != null) {
+            socket.commitBuffer(rtphl + header, payload, codec, release);
+        } else {
+            int length = payload.remaining();
+            payload.get(buffer, rtphl + header, length);
+            super.send(rtphl + header + length);
+        }
+    }
+
+    private void sendParameterSets() throws IOException, InterruptedException {
+        if (vps != null) aggregate(ByteBuffer.wrap(vps));
+        if (sps != null) aggregate(ByteBuffer.wrap(sps));
+        if (pps != null) aggregate(ByteBuffer.wrap(pps));
+    }
+
+    /**
+     * Copies the remaining bytes of the buffer, a whole NAL unit, in the Aggregation Packet being built.
+     * The packet is sent first if the NAL unit does not fit in it, or if its timestamp differs.
+     */
+    private void aggregate(ByteBuffer nal) throws IOException, InterruptedException {
+        int length = nal.remaining();
+        if (apCount > 0 && (rtphl + apLength + 2 + length > MAXPACKETSIZE || apTs != ts)) flushAp(null, -1, false);
+        byte h0 = nal.get(nal.position()), h1 = nal.get(nal.position() + 1);
+        int layer = (h0 & 0x01) << 5 | (h1 & 0xFF) >> 3, tid = h1 & 0x07;
+        if (apCount == 0) {
+            buffer = socket.requestBuffer();
+            buffer[rtphl] = 0;
+            apLength = 2;
+            apTs = ts;
+            apLayer = layer;
+            apTid = tid;
+        }
+        // The payload header has the F bit of any NAL unit, and their lowest LayerId and TID
+        apLayer = Math.min(apLayer, layer);
+        apTid = Math.min(apTid, tid);
+        buffer[rtphl] = (byte) ((buffer[rtphl] | h0) & 0x80 | AP << 1 | apLayer >> 5);
+        buffer[rtphl + 1] = (byte) ((apLayer & 0x1F) << 3 | apTid);
+        buffer[rtphl + apLength] = (byte) (length >> 8);
+        buffer[rtphl + apLength + 1] = (byte) length;
+        nal.get(buffer, rtphl + apLength + 2, length);
+        apLength += length + 2;
+        apCount++;
+    }
+
+    /**
+     * Sends the Aggregation Packet being built, as a single NAL unit packet if it only holds one,
+     * and has the socket give the payload back to its owner once sent if release is not -1.
+     * @param last True if the packet ends the access unit, it has the marker bit then
+     */
+    private void flushAp(RtpSocket.PayloadOwner owner, int release, boolean last) throws IOException {
+        if (apCount == 0) return;
+        if (apCount == 1) {
+            apLength -= 4;
+            System.arraycopy(buffer, rtphl + 4, buffer, rtphl, apLength);
+        }
+        socket.updateTimestamp(apTs);
+        if (last) socket.markNextPacket();
+        socket.commitBuffer(rtphl + apLength, null, owner, release);
+        apCount = 0;
+        apLength = 0;
+    }
+
+    /** Sub-layer non-reference pictures: nothing depends on them. */
+    private static boolean isDroppable(int type) {
+        return type <= 14 && type % 2 == 0;
+    }
+
+    private int packets(int length) {
+        int size = MAXPACKETSIZE - rtphl - 3;
+        return length <= MAXPACKETSIZE - rtphl ? 1 : (length + size - 1) / size;
+    }
+
+    /**
+     * When the FIFO of the socket is too full, whole non-reference pictures are dropped,
+     * see {@link H264Packetizer}.
+     * @return true if the access unit in the buffer must be dropped
+     */
+    private boolean drop(ByteBuffer data, int count, int length) {
+        for (int i = 0; i < count; i++) {
+            int type = (data.get(splitter.getStart(i)) >> 1) & 0x3F;
+            if (type < 32 && !isDroppable(type)) return false;
+        }
+        if (ts == dropped || socket.isCongested(packets(length))) {
+            dropped = ts;
+            return true;
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends RTP and RTCP packets over the TCP connection of an RTSP client, each of them 
+ * in a $-prefixed frame (RFC 2326 section 10.12).
+ * <p>
+ * Packets are copied in a bounded queue that the owner of the connection drains with
+ * {@link #drainTo(ByteBuffer)} when the socket is writable, so a slow TCP client never 
+ * blocks the Thread that sends the packets of a stream. When the queue is full, packets 
+ * are dropped. The {@link Listener} is told when packets are waiting, once per drain.
+ */
+public class InterleavedOutput {
+
+	public final static String TAG = "InterleavedOutput";
+
+	/** Default number of packets that can wait in the queue. */
+	public final static int DEFAULT_CAPACITY = 256;
+
+	/** Told when the queue stops being empty. */
+	public interface Listener {
+		/** Called by the Thread that queued the packet, must not block. */
+		void onFramesAvailable(InterleavedOutput output);
+	}
+
+	private final InetAddress mAddress;
+	private final ArrayBlockingQueue<byte[]> mQueue, mPool;
+	private final Listener mListener;
+	private final AtomicBoolean mSignaled = new AtomicBoolean(false);
+	private byte[] mPending;
+	private volatile boolean mClosed = false;
+	private final AtomicLong mDropped = new AtomicLong();
+
+	/**
+	 * @param address The address of the client
+	 * @param capacity The maximum number of packets waiting to be sent
+	 * @param listener Told when packets are waiting to be drained
+	 */
+	public InterleavedOutput(InetAddress address, int capacity, Listener listener) {
+		mAddress = address;
+		mListener = listener;
+		mQueue = new ArrayBlockingQueue<byte[]>(capacity);
+		mPool = new ArrayBlockingQueue<byte[]>(capacity);
+	}
+
+	public InetAddress getAddress() {
+		return mAddress;
+	}
+
+	/** Returns the number of packets dropped because the queue was full. */
+	public long getDroppedPackets() {
+		return mDropped.get();
+	}
+
+	/** The packets still in the queue are lost, and the next ones are dropped. */
+	public void close() {
+		mClosed = true;
+		mQueue.clear();
+	}
+
+	public boolean isClosed() {
+		return mClosed;
+	}
+
+	/**
+	 * Queues a packet made of the remaining bytes of the header followed by 
+	 * the remaining bytes of the payload.
+	 * @param payload The rest of the packet or null
+	 * @return false if the queue is full and the packet was dropped
+	 */
+	public boolean offer(int channel, ByteBuffer header, ByteBuffer payload) {
+		int length = header.remaining() + (payload != null ? payload.remaining() : 0);
+		byte[] frame = frame(channel, length);
+		int offset = 4 + header.remaining();
+		header.get(frame, 4, header.remaining());
+		if (payload != null) payload.get(frame, offset, payload.remaining());
+		return offer(frame);
+	}
+
+	/**
+	 * Queues a packet.
+	 * @return false if the queue is full and the packet was dropped
+	 */
+	public boolean offer(int channel, byte[] data, int offset, int length) {
+		byte[] frame = frame(channel, length);
+		System.arraycopy(data, offset, frame, 4, length);
+		return offer(frame);
+	}
+
+	private boolean offer(byte[] frame) {
+		if (mClosed || !mQueue.offer(frame)) {
+			mDropped.incrementAndGet();
+			recycle(frame);
+			return false;
+		}
+		if (mSignaled.compareAndSet(false, true)) mListener.onFramesAvailable(this);
+		return true;
+	}
+
+	/**
+	 * Moves as many whole frames as fit from the queue to the buffer, frames are never split.
+	 * Must always be called by the same Thread.
+	 * @return true if frames are still waiting because the buffer is full
+	 */
+	public boolean drainTo(ByteBuffer out) {
+		// Cleared first, a packet queued from now on will signal again
+		mSignaled.set(false);
+		byte[] frame = mPending;
+		mPending = null;
+		if (frame == null) frame = mQueue.poll();
+		while (frame != null) {
+			int length = 4 + ((frame[2] & 0xFF) << 8 | frame[3] & 0xFF);
+			if (length > out.capacity()) {
+				// Can never be written
+				mDropped.incrementAndGet();
+			} else if (length > out.remaining()) {
+				mPending = frame;
+				return true;
+			} else {
+				out.put(frame, 0, length);
+			}
+			recycle(frame);
+			frame = mQueue.poll();
+		}
+		return false;
+	}
+
+	/** Returns a buffer starting with the header of an interleaved frame. */
+	private byte[] frame(int channel, int length) {
+		byte[] frame = length <= RtpSocket.MTU ? mPool.poll() : null;
+		if (frame == null) frame = new byte[4 + Math.max(length, RtpSocket.MTU)];
+		frame[0] = '$';
+		frame[1] = (byte) channel;
+		frame[2] = (byte) (length >> 8);
+		frame[3] = (byte) length;
+		return frame;
+	}
+
+	private void recycle(byte[] frame) {
+		if (frame.length == 4 + RtpSocket.MTU) mPool.offer(frame);
+	}
+
+}
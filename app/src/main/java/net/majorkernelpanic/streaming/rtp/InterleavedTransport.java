@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Sends the RTP packets of an {@link RtpDestination} on a channel of an {@link InterleavedOutput}.
+ * When the queue of the output is full, the rest of the frame is dropped: 
+ * every packet with the same RTP timestamp as the one that did not fit.
+ */
+class InterleavedTransport implements RtpTransport {
+
+	private final InterleavedOutput mOutput;
+	private final int mChannel;
+	private boolean mDropping = false;
+	private int mDroppedTimestamp;
+
+	public InterleavedTransport(InterleavedOutput output, int channel) {
+		mOutput = output;
+		mChannel = channel;
+	}
+
+	boolean matches(InterleavedOutput output, int channel) {
+		return mOutput == output && mChannel == channel;
+	}
+
+	@Override
+	public boolean write(ByteBuffer header, ByteBuffer payload) {
+		int timestamp = header.getInt(header.position() + 4);
+		if (mDropping && timestamp == mDroppedTimestamp) return true;
+		mDropping = !mOutput.offer(mChannel, header, payload);
+		mDroppedTimestamp = timestamp;
+		// The packet is never retried, the queue is what absorbs the bursts
+		return true;
+	}
+
+	@Override
+	public void setSendBufferSize(int size) {}
+
+	@Override
+	public void setTimeToLive(int ttl) {}
+
+	@Override
+	public int getLocalPort() {
+		return -1;
+	}
+
+	@Override
+	public void close() {}
+
+}
@@ -36,7 +36,7 @@ import android.util.Log;
  * libstreaming with the new MediaCodec API. This class is not thread safe !  
  */
 @SuppressLint("NewApi")
-public class MediaCodecInputStream extends InputStream {
+public class MediaCodecInputStream extends InputStream implements RtpSocket.PayloadOwner {
 
 	public final String TAG = "MediaCodecInputStream"; 
 
@@ -45,7 +45,9 @@ public class MediaCodecInputStream extends InputStream {
 	private ByteBuffer[] mBuffers = null;
 	private ByteBuffer mBuffer = null;
 	private int mIndex = -1;
-	private boolean mClosed = false;
+	// Read by the Thread of the RtpScheduler through isAvailable()
+	private volatile boolean mClosed = false;
+	private RtpMetrics mMetrics = null;
 	
 	public MediaFormat mMediaFormat;
 
@@ -70,26 +72,10 @@ public class MediaCodecInputStream extends InputStream {
 
 		try {
 			if (mBuffer==null) {
-				while (!Thread.interrupted() && !mClosed) {
-					mIndex = mMediaCodec.dequeueOutputBuffer(mBufferInfo, 500000);
-					if (mIndex>=0 ){
-						//Log.d(TAG,"Index: "+mIndex+" Time: "+mBufferInfo.presentationTimeUs+" size: "+mBufferInfo.size);
-						mBuffer = mBuffers[mIndex];
-						mBuffer.position(0);
-						break;
-					} else if (mIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-						mBuffers = mMediaCodec.getOutputBuffers();
-					} else if (mIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-						mMediaFormat = mMediaCodec.getOutputFormat();
-						Log.i(TAG,mMediaFormat.toString());
-					} else if (mIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
-						Log.v(TAG,"No buffer available...");
-						//return 0;
-					} else {
-						Log.e(TAG,"Message: "+mIndex);
-						//return 0;
-					}
-				}			
+				if (dequeue()) {
+					mBuffer = mBuffers[mIndex];
+					mBuffer.position(0);
+				}
 			}
 			
 			if (mClosed) throw new IOException("This InputStream was closed");
@@ -108,6 +94,78 @@ public class MediaCodecInputStream extends InputStream {
 		return min;
 	}
 	
+	/**
+	 * Returns the next output buffer of the MediaCodec, its position and its limit delimit
+	 * the data. Nothing is copied: the buffer belongs to the caller until it calls 
+	 * {@link #releasePayload(int)} with {@link #getLastBufferIndex()}.
+	 * Must not be mixed with calls to {@link #read(byte[], int, int)}.
+	 */
+	public ByteBuffer readBuffer() throws IOException {
+		ByteBuffer buffer = null;
+		try {
+			if (dequeue()) {
+				buffer = mBuffers[mIndex];
+				buffer.clear();
+				buffer.position(mBufferInfo.offset);
+				buffer.limit(mBufferInfo.offset+mBufferInfo.size);
+			}
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+		if (mClosed || buffer == null) throw new IOException("This InputStream was closed");
+		return buffer;
+	}
+
+	/** Returns the index of the buffer returned by {@link #readBuffer()}. */
+	public int getLastBufferIndex() {
+		return mIndex;
+	}
+
+	@Override
+	public boolean isAvailable() {
+		return !mClosed;
+	}
+
+	/** Gives an output buffer returned by {@link #readBuffer()} back to the MediaCodec. */
+	@Override
+	public void releasePayload(int index) {
+		// Once closed, the MediaCodec is about to be stopped and gets all its buffers back
+		if (mClosed) return;
+		try {
+			mMediaCodec.releaseOutputBuffer(index, false);
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/** The time spent waiting for each output buffer is recorded in those metrics. */
+	void setMetrics(RtpMetrics metrics) {
+		mMetrics = metrics;
+	}
+
+	/** Waits for the next output buffer of the MediaCodec, returns false if the stream was closed meanwhile. */
+	private boolean dequeue() {
+		long start = System.nanoTime();
+		while (!Thread.interrupted() && !mClosed) {
+			mIndex = mMediaCodec.dequeueOutputBuffer(mBufferInfo, 500000);
+			if (mIndex>=0 ){
+				//Log.d(TAG,"Index: "+mIndex+" Time: "+mBufferInfo.presentationTimeUs+" size: "+mBufferInfo.size);
+				if (mMetrics != null) mMetrics.onDequeue(System.nanoTime()-start);
+				return true;
+			} else if (mIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+				mBuffers = mMediaCodec.getOutputBuffers();
+			} else if (mIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+				mMediaFormat = mMediaCodec.getOutputFormat();
+				Log.i(TAG,mMediaFormat.toString());
+			} else if (mIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
+				Log.v(TAG,"No buffer available...");
+			} else {
+				Log.e(TAG,"Message: "+mIndex);
+			}
+		}
+		return false;
+	}
+
 	public int available() {
 		if (mBuffer != null) 
 			return mBufferInfo.size - mBuffer.position();
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.nio.ByteBuffer;
+
+/**
+ * Sends packets to a multicast group. A {@link MulticastSocket} is still needed 
+ * here because a DatagramChannel can not set the TTL of multicast packets before API 24.
+ */
+class MulticastTransport implements RtpTransport {
+
+	private final MulticastSocket mSocket;
+	private final DatagramPacket mPacket;
+	private byte[] mBuffer = new byte[RtpSocket.MTU];
+
+	public MulticastTransport(InetAddress dest, int port, int ttl) throws IOException {
+		mSocket = new MulticastSocket();
+		mSocket.setTimeToLive(ttl);
+		mPacket = new DatagramPacket(new byte[1], 1, dest, port);
+	}
+
+	@Override
+	public boolean write(ByteBuffer header, ByteBuffer payload) throws IOException {
+		if (payload == null) {
+			mPacket.setData(header.array(), header.arrayOffset()+header.position(), header.remaining());
+		} else {
+			// A DatagramPacket needs the whole packet in one array
+			int length = header.remaining()+payload.remaining();
+			if (mBuffer.length<length) mBuffer = new byte[length];
+			int offset = header.remaining();
+			header.get(mBuffer, 0, offset);
+			payload.get(mBuffer, offset, length-offset);
+			mPacket.setData(mBuffer, 0, length);
+		}
+		mSocket.send(mPacket);
+		return true;
+	}
+
+	@Override
+	public void setSendBufferSize(int size) throws IOException {
+		mSocket.setSendBufferSize(size);
+	}
+
+	@Override
+	public void setTimeToLive(int ttl) throws IOException {
+		mSocket.setTimeToLive(ttl);
+	}
+
+	@Override
+	public int getLocalPort() {
+		return mSocket.getLocalPort();
+	}
+
+	@Override
+	public void close() {
+		mSocket.close();
+	}
+
+}
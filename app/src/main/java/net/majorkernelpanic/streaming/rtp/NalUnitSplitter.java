@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Finds the NAL units of an H.264 or H.265 bit stream in the Annex B format held in a ByteBuffer,
+ * without copying it: what a MediaCodec outputs.
+ * <p>
+ * NAL units are preceded by a start code, 0x000001 or 0x00000001.
+ * Start codes are searched for 8 bytes at a time: a word can only contain the beginning of
+ * a start code if one of its bytes is 0, which is checked for all the bytes at once.
+ * <p>
+ * After {@link #split(ByteBuffer)}, the boundaries of the NAL units are absolute indexes in the buffer,
+ * start codes excluded.
+ */
+public class NalUnitSplitter {
+
+	private static final long ONES = 0x0101010101010101L;
+	private static final long HIGHS = 0x8080808080808080L;
+
+	private int[] mStarts = new int[16], mEnds = new int[16];
+	private int mCount = 0;
+
+	/**
+	 * Finds the NAL units between the position and the limit of the buffer.
+	 * Bytes before the first start code are taken as a NAL unit:
+	 * some encoders do not put a start code before the first one.
+	 * @return The number of NAL units found, empty ones are skipped
+	 */
+	public int split(ByteBuffer data) {
+		mCount = 0;
+		int start = data.position(), to = data.limit();
+		int code;
+		while ((code = findStartCode(data, start, to)) >= 0) {
+			// The 0 that makes a start code 4 bytes long, and trailing zeros, are not part of the NAL unit
+			int end = code;
+			while (end > start && data.get(end - 1) == 0) end--;
+			add(start, end);
+			start = code + 3;
+		}
+		add(start, to);
+		return mCount;
+	}
+
+	/** Returns the number of NAL units found by the last call to {@link #split(ByteBuffer)}. */
+	public int getCount() {
+		return mCount;
+	}
+
+	/** Returns the index in the buffer of the first byte of the i-th NAL unit, its header. */
+	public int getStart(int i) {
+		return mStarts[i];
+	}
+
+	/** Returns the index in the buffer following the last byte of the i-th NAL unit. */
+	public int getEnd(int i) {
+		return mEnds[i];
+	}
+
+	private void add(int start, int end) {
+		if (end <= start) return;
+		if (mCount == mStarts.length) {
+			int[] starts = new int[mCount * 2], ends = new int[mCount * 2];
+			System.arraycopy(mStarts, 0, starts, 0, mCount);
+			System.arraycopy(mEnds, 0, ends, 0, mCount);
+			mStarts = starts;
+			mEnds = ends;
+		}
+		mStarts[mCount] = start;
+		mEnds[mCount] = end;
+		mCount++;
+	}
+
+	/**
+	 * Returns the index of the first 0x000001 sequence found between from and to, or -1.
+	 * A 4 bytes start code is found at the index of its second byte.
+	 */
+	public static int findStartCode(ByteBuffer data, int from, int to) {
+		int i = from;
+		// 8 bytes at a time, the bytes of a word that has no 0 can be skipped
+		for (; i + 8 <= to; i += 8) {
+			long word = data.getLong(i);
+			if (((word - ONES) & ~word & HIGHS) == 0) continue;
+			for (int j = i; j < i + 8 && j + 2 < to; j++) {
+				if (data.get(j) == 0 && data.get(j + 1) == 0 && data.get(j + 2) == 1) return j;
+			}
+		}
+		for (; i + 2 < to; i++) {
+			if (data.get(i) == 0 && data.get(i + 1) == 0 && data.get(i + 2) == 1) return i;
+		}
+		return -1;
+	}
+
+}
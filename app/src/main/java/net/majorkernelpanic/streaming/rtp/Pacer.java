@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Computes when each packet of an {@link RtpSocket} must be sent.
+ * <p>
+ * The first packet of a frame is due at a time derived from its RTP timestamp: 
+ * the timestamps are anchored to the clock once, and the delay set with 
+ * {@link #setDelay(long)} is added to that. The following packets of the frame 
+ * are then spread according to the pacing mode, so that an IDR frame does not 
+ * reach the network as a single burst of packets.
+ */
+class Pacer {
+
+	/** Frames more than this late or early reset the anchor, after a pause for instance. */
+	private static final long RESYNC = TimeUnit.SECONDS.toNanos(1);
+	/** Longest frame interval a frame can be spread over. */
+	private static final long MAX_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+	private volatile int mMode = RtpSocket.PACING_FRAME;
+	private volatile float mFactor = 0.5f;
+	private volatile long mDelay = 0;
+
+	private boolean mAnchored = false;
+	private long mAnchorTime, mAnchorTimestamp;
+	private long mFrameTimestamp, mInterval, mFrameEnd, mNext;
+	// Packets of the current frame sent so far, and of the previous frame
+	private int mFramePackets, mLastFramePackets;
+
+	/**
+	 * @param mode {@link RtpSocket#PACING_NONE}, {@link RtpSocket#PACING_FRAME} or {@link RtpSocket#PACING_BITRATE}
+	 * @param factor The fraction of the frame interval or the multiple of the bitrate 
+	 */
+	public void setMode(int mode, float factor) {
+		if (factor <= 0) throw new IllegalArgumentException("The pacing factor must be positive");
+		mMode = mode;
+		mFactor = factor;
+	}
+
+	public int getMode() {
+		return mMode;
+	}
+
+	/** Sets how long packets are kept before being sent in ns. */
+	public void setDelay(long delay) {
+		mDelay = delay;
+	}
+
+	public long getDelay() {
+		return mDelay;
+	}
+
+	public void reset() {
+		mAnchored = false;
+		mInterval = 0;
+		mNext = 0;
+		mFramePackets = mLastFramePackets = 0;
+	}
+
+	/** Returns true if a packet with this timestamp (in ns) is the first of its frame. */
+	public boolean isNewFrame(long timestamp) {
+		return !mAnchored || timestamp != mFrameTimestamp;
+	}
+
+	/**
+	 * Called with the first packet of a frame.
+	 * @param timestamp The timestamp of the frame in ns
+	 */
+	public void startFrame(long timestamp) {
+		long now = System.nanoTime();
+		long delay = mDelay;
+
+		if (mAnchored) {
+			long interval = timestamp - mFrameTimestamp;
+			mInterval = interval > 0 ? Math.min(interval, MAX_INTERVAL) : 0;
+		}
+		mFrameTimestamp = timestamp;
+
+		long start = mAnchorTime + (timestamp - mAnchorTimestamp);
+		if (!mAnchored || start < now - RESYNC || start > now + delay + RESYNC) {
+			mAnchored = true;
+			mAnchorTime = now + delay;
+			mAnchorTimestamp = timestamp;
+			start = mAnchorTime;
+		} else if (start > now + delay) {
+			// The frame came sooner than the anchor predicted, the anchor was too late
+			mAnchorTime -= start - (now + delay);
+			start = now + delay;
+		}
+
+		mNext = Math.max(mNext, start);
+		mFrameEnd = mNext + (long) (mFactor * mInterval);
+		mLastFramePackets = mFramePackets;
+		mFramePackets = 0;
+	}
+
+	/**
+	 * Returns the time, in the System.nanoTime() timebase, at which the next packet should be sent.
+	 * With {@link RtpSocket#PACING_FRAME}, what is left of the frame interval is shared between the 
+	 * packets of the frame that follow: the ones already in the FIFO, or as many as the previous frame 
+	 * had if more are still to come. A MediaCodec hands the packets of a frame over one at a time.
+	 * @param length The length of the packet in bytes
+	 * @param bitrate The bitrate of the stream in bit/s, used by {@link RtpSocket#PACING_BITRATE}
+	 * @param queued The number of packets of the same frame in the FIFO after this one
+	 */
+	public long next(int length, int bitrate, int queued) {
+		long deadline = mNext;
+		// Packets that are already late are not followed by a burst to catch up
+		long sent = Math.max(deadline, System.nanoTime());
+		long gap = 0;
+		mFramePackets++;
+		if (mMode == RtpSocket.PACING_FRAME) {
+			int remaining = Math.max(queued, mLastFramePackets - mFramePackets);
+			if (remaining > 0 && mFrameEnd > sent) gap = (mFrameEnd - sent) / (remaining + 1);
+		} else if (mMode == RtpSocket.PACING_BITRATE) {
+			gap = bitrate > 0 ? (long) (length * 8 * 1000000000L / (mFactor * bitrate)) : 0;
+		}
+		mNext = sent + gap;
+		return deadline;
+	}
+
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A lock-free FIFO of slot indexes shared by exactly one producer (the packetizer)
+ * and one consumer (the Thread of the {@link RtpScheduler}, which drains the socket).
+ * <p>
+ * The slots themselves (buffers, lengths, timestamps...) are owned by the RtpSocket,
+ * this class only tells each side which slot it may use. The consumer never waits, the
+ * RtpSocket wakes the scheduler up when it has packets. A producer that has to wait
+ * first spins, then yields, and only parks if the consumer is still not done.
+ */
+class PacketFifo {
+
+	// The head and the tail live in the same array, 64 bytes apart, so that
+	// the producer and the consumer never write to the same cache line
+	private static final int PAD = 8;
+	private static final int HEAD = PAD, TAIL = 2*PAD;
+
+	private static final int SPINS = 100, YIELDS = 10;
+
+	private final AtomicLongArray mIndexes = new AtomicLongArray(3*PAD);
+	private volatile int mCapacity;
+
+	// Only read and written by the producer
+	private long mCachedTail = 0;
+	// Only read and written by the consumer
+	private long mCachedHead = 0;
+
+	private volatile Thread mWaitingProducer = null;
+
+	public PacketFifo(int capacity) {
+		mCapacity = capacity;
+	}
+
+	public int capacity() {
+		return mCapacity;
+	}
+
+	/**
+	 * Called by the producer, changes the number of slots. 
+	 * The FIFO must be empty: the consumer must have released every slot.
+	 */
+	public void setCapacity(int capacity) {
+		if (size() != 0) throw new IllegalStateException("The FIFO is not empty");
+		mCapacity = capacity;
+	}
+
+	/** Returns the number of slots committed but not yet released. */
+	public int size() {
+		return (int) (mIndexes.get(HEAD) - mIndexes.get(TAIL));
+	}
+
+	/**
+	 * Called by the producer, blocks until a slot is free and returns its index.
+	 * Calling it again without calling {@link #publish()} returns the same slot.
+	 */
+	public int acquire() throws InterruptedException {
+		long head = mIndexes.get(HEAD);
+		if (head - mCachedTail >= mCapacity) {
+			mCachedTail = mIndexes.get(TAIL);
+			for (int i = 0; head - mCachedTail >= mCapacity; i++) {
+				if (Thread.interrupted()) throw new InterruptedException();
+				if (i < SPINS) {
+					// Busy spin
+				} else if (i < SPINS + YIELDS) {
+					Thread.yield();
+				} else {
+					mWaitingProducer = Thread.currentThread();
+					if (head - mIndexes.get(TAIL) >= mCapacity) LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(10));
+					mWaitingProducer = null;
+				}
+				mCachedTail = mIndexes.get(TAIL);
+			}
+		}
+		return (int) (head % mCapacity);
+	}
+
+	/** Called by the producer, hands the slot returned by {@link #acquire()} to the consumer. */
+	public void publish() {
+		mIndexes.set(HEAD, mIndexes.get(HEAD) + 1);
+	}
+
+	/**
+	 * Called by the consumer, does not wait.
+	 * @param n 0 for the oldest committed slot, 1 for the one committed right after it...
+	 * @return The index of the slot or -1 if it has not been committed yet
+	 */
+	public int peek(int n) {
+		long slot = mIndexes.get(TAIL) + n;
+		if (slot >= mCachedHead) {
+			mCachedHead = mIndexes.get(HEAD);
+			if (slot >= mCachedHead) return -1;
+		}
+		return (int) (slot % mCapacity);
+	}
+
+	/** Called by the consumer, gives the count oldest committed slots back to the producer. */
+	public void release(int count) {
+		mIndexes.set(TAIL, mIndexes.get(TAIL) + count);
+		Thread producer = mWaitingProducer;
+		if (producer != null) LockSupport.unpark(producer);
+	}
+
+	/** Called by the consumer, drops every committed slot. */
+	public void clear() {
+		mCachedHead = mIndexes.get(HEAD);
+		mIndexes.set(TAIL, mCachedHead);
+		Thread producer = mWaitingProducer;
+		if (producer != null) LockSupport.unpark(producer);
+	}
+
+}
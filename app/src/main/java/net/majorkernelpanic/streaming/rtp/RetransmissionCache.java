@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps a copy of the packets sent during the last few hundred milliseconds, so that 
+ * the packets a receiver reports as lost with a NACK can be sent again.
+ * Packets are indexed by their number in the stream, which does not depend on the 
+ * sequence numbers of the destinations. Only used by the Thread of the {@link RtpScheduler}.
+ */
+class RetransmissionCache {
+
+	private static final int MIN_CAPACITY = 256, MAX_CAPACITY = 4096;
+
+	private final long mDuration;
+	private ByteBuffer[] mPackets;
+	private long[] mNumbers, mTimes;
+	private int mMask;
+
+	/** @param duration How long packets are kept in ns */
+	public RetransmissionCache(long duration) {
+		mDuration = duration;
+		allocate(MIN_CAPACITY);
+	}
+
+	private void allocate(int capacity) {
+		mPackets = new ByteBuffer[capacity];
+		mNumbers = new long[capacity];
+		mTimes = new long[capacity];
+		mMask = capacity - 1;
+		for (int i = 0; i < capacity; i++) mNumbers[i] = -1;
+	}
+
+	/**
+	 * Copies a packet in the cache.
+	 * @param number The number of the packet in the stream
+	 * @param payload The payload following the header or null
+	 * @param now The time in ns
+	 */
+	public void put(long number, byte[] header, int length, ByteBuffer payload, long now) {
+		int index = (int) (number & mMask);
+		if (mNumbers[index] >= 0 && now - mTimes[index] < mDuration && mPackets.length < MAX_CAPACITY) {
+			// The packet that would be overwritten is still needed
+			grow();
+			index = (int) (number & mMask);
+		}
+		int size = length + (payload != null ? payload.remaining() : 0);
+		ByteBuffer packet = mPackets[index];
+		if (packet == null || packet.capacity() < size) {
+			packet = mPackets[index] = ByteBuffer.allocate(Math.max(size, RtpSocket.MTU));
+		}
+		packet.clear();
+		packet.put(header, 0, length);
+		if (payload != null) packet.put(payload);
+		packet.flip();
+		mNumbers[index] = number;
+		mTimes[index] = now;
+	}
+
+	/**
+	 * Returns the packet with that number, its position and limit delimit it, 
+	 * or null if it is not in the cache anymore.
+	 */
+	public ByteBuffer get(long number, long now) {
+		if (number < 0) return null;
+		int index = (int) (number & mMask);
+		if (mNumbers[index] != number || now - mTimes[index] > mDuration) return null;
+		ByteBuffer packet = mPackets[index];
+		packet.position(0);
+		return packet;
+	}
+
+	private void grow() {
+		ByteBuffer[] packets = mPackets;
+		long[] numbers = mNumbers, times = mTimes;
+		allocate(packets.length * 2);
+		for (int i = 0; i < packets.length; i++) {
+			if (numbers[i] < 0) continue;
+			int index = (int) (numbers[i] & mMask);
+			mPackets[index] = packets[i];
+			mNumbers[index] = numbers[i];
+			mTimes[index] = times[i];
+		}
+	}
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import android.util.Log;
+
+/**
+ * Reads the RTCP packets sent by the receivers of an {@link RtpSocket} on the
+ * UDP sockets of their Sender Reports, and hands them to their {@link RtpDestination}.
+ * A single Thread and a Selector serve every destination of the socket.
+ */
+class RtcpReceiver implements Runnable {
+
+	public final static String TAG = "RtcpReceiver";
+
+	private final ConcurrentLinkedQueue<RtpDestination> mPending = new ConcurrentLinkedQueue<RtpDestination>();
+	private final ByteBuffer mBuffer = ByteBuffer.allocate(1500);
+	private Selector mSelector;
+	private Thread mThread;
+
+	/** Starts listening to the RTCP socket of the destination, the Thread is started if needed. */
+	public synchronized void register(RtpDestination destination) {
+		try {
+			if (mThread == null) {
+				mSelector = Selector.open();
+				mThread = new Thread(this, TAG);
+				mThread.start();
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "RTCP feedback will be ignored: " + e.getMessage());
+			return;
+		}
+		// The Thread registers it, register() would block while it is in select()
+		mPending.add(destination);
+		mSelector.wakeup();
+	}
+
+	public synchronized void close() {
+		if (mThread != null) {
+			mThread.interrupt();
+			mSelector.wakeup();
+			try {
+				mThread.join();
+			} catch (InterruptedException ignore) {}
+			mThread = null;
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!Thread.interrupted()) {
+				mSelector.select();
+
+				RtpDestination destination;
+				while ((destination = mPending.poll()) != null) {
+					DatagramChannel channel = destination.getRtcpSocket().getChannel();
+					try {
+						channel.configureBlocking(false);
+						channel.register(mSelector, SelectionKey.OP_READ, destination);
+					} catch (ClosedChannelException ignore) {
+						// The destination was already removed
+					}
+				}
+
+				Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) continue;
+					mBuffer.clear();
+					try {
+						if (((DatagramChannel) key.channel()).receive(mBuffer) == null) continue;
+					} catch (IOException e) {
+						// The channel was closed meanwhile
+						key.cancel();
+						continue;
+					}
+					mBuffer.flip();
+					((RtpDestination) key.attachment()).onRtcp(mBuffer);
+				}
+			}
+		} catch (IOException e) {
+			Log.e(TAG, e.getMessage() != null ? e.getMessage() : "Selector failed");
+		} finally {
+			try {
+				mSelector.close();
+			} catch (IOException ignore) {}
+		}
+	}
+
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import net.majorkernelpanic.streaming.rtcp.RtcpParser;
+import net.majorkernelpanic.streaming.rtcp.SenderReport;
+import android.os.SystemClock;
+
+/**
+ * One receiver of an {@link RtpSocket}.
+ * The packets produced by the packetizer are only built once and then sent to
+ * every destination of the socket. Each destination has its own SSRC, its own
+ * sequence numbers and its own RTCP Sender Reports so that receivers never
+ * notice that they share the same encoder.
+ */
+public class RtpDestination {
+
+	private final RtpSocket mSocket;
+	private final InetAddress mAddress;
+	private final int mPort, mRtcpPort;
+	private final SenderReport mReport;
+	private final RtpTransport mTransport;
+
+	private int mSsrc, mSeq = 0;
+	private long mNumber = -1, mFirstNumber = -1;
+	private long mDropped = 0;
+	private final Feedback mFeedback = new Feedback();
+
+	// Reception statistics from the last Receiver Report
+	private volatile int mFractionLost = 0, mCumulativeLost = 0, mJitter = 0, mRoundTripTime = -1;
+	private volatile long mReportTime = 0;
+	int mUsers = 1;
+	// Set until the Thread of the scheduler starts sending it the current group of pictures
+	volatile boolean mReplay = true;
+	volatile boolean mPaused = false;
+	// Set when the destination resumes, the packets sent before the pause can not be retransmitted
+	volatile boolean mResumed = false;
+	// While the destination catches up with the stream: the next packet of the cache it is sent, or -1
+	int mReplayIndex = -1;
+	// The cache and its generation, the packets that were there when it joined, and their frames
+	GopCache mReplayCache;
+	int mReplayGeneration, mReplayEnd, mReplayFrames, mReplayFrame;
+	long mReplayTimestamp;
+
+	RtpDestination(RtpSocket socket, RtpTransport transport, InetAddress dest, int rtpPort, int rtcpPort, int ssrc, SenderReport report) {
+		mSocket = socket;
+		mTransport = transport;
+		mAddress = dest;
+		mPort = rtpPort;
+		mRtcpPort = rtcpPort;
+		mReport = report;
+		setSSRC(ssrc);
+	}
+
+	/** Returns the address the packets are sent to. */
+	public InetAddress getAddress() {
+		return mAddress;
+	}
+
+	/** Returns the destination port used for RTP, or the interleaved channel for RTP/AVP/TCP. */
+	public int getPort() {
+		return mPort;
+	}
+
+	/** Returns the destination port used for RTCP, or the interleaved channel for RTP/AVP/TCP. */
+	public int getRtcpPort() {
+		return mRtcpPort;
+	}
+
+	/** Returns the SSRC this destination sees. */
+	public int getSSRC() {
+		return mSsrc;
+	}
+
+	public SenderReport getRtcpSocket() {
+		return mReport;
+	}
+
+	/**
+	 * Returns a pair of source ports, the first one is the
+	 * one used for RTP and the second one is used for RTCP.
+	 **/
+	public int[] getLocalPorts() {
+		return new int[] {
+				mTransport.getLocalPort(),
+				mReport.getLocalPort()
+		};
+	}
+
+	/** Returns the fraction of packets lost by the receiver in its last report, out of 256. */
+	public int getFractionLost() {
+		return mFractionLost;
+	}
+
+	/** Returns the number of packets lost by the receiver since it joined, according to its last report. */
+	public int getCumulativeLost() {
+		return mCumulativeLost;
+	}
+
+	/** Returns the interarrival jitter measured by the receiver in RTP timestamp units. */
+	public int getJitter() {
+		return mJitter;
+	}
+
+	/** Returns the round trip time in ms computed from the last report, or -1 if unknown. */
+	public int getRoundTripTime() {
+		return mRoundTripTime;
+	}
+
+	/** Returns the time of the last report of the receiver, in the SystemClock.elapsedRealtime() timebase, or 0. */
+	public long getReportTime() {
+		return mReportTime;
+	}
+
+	/** 
+	 * Stops or resumes sending packets to this destination, see {@link RtpSocket#setPaused(RtpDestination, boolean)}.
+	 */
+	public void setPaused(boolean paused) {
+		mSocket.setPaused(this, paused);
+	}
+
+	public boolean isPaused() {
+		return mPaused;
+	}
+
+	/** Returns the number of packets that could not be sent because the send buffer was full. */
+	public long getDroppedPackets() {
+		return mDropped;
+	}
+
+	RtpTransport getTransport() {
+		return mTransport;
+	}
+
+	void setSSRC(int ssrc) {
+		mSsrc = ssrc;
+		mReport.setSSRC(ssrc);
+	}
+
+	/** Returns true if packets for this destination already go to the given address and port. */
+	boolean matches(InetAddress dest, int rtpPort) {
+		return mPort == rtpPort && mAddress.equals(dest) && !isInterleaved();
+	}
+
+	/** Returns true if packets for this destination already go to the given channel of the output. */
+	boolean matches(InterleavedOutput output, int channel) {
+		return isInterleaved() && ((InterleavedTransport) mTransport).matches(output, channel);
+	}
+
+	/** Returns true if the packets are sent over the RTSP connection of the receiver. */
+	public boolean isInterleaved() {
+		return mTransport instanceof InterleavedTransport;
+	}
+
+	/** 
+	 * Writes the sequence number and the SSRC of this destination in the packet. 
+	 * @param number The number of the packet in the stream
+	 */
+	void prepare(byte[] buffer, long number) {
+		count(number);
+		setLong(buffer, mSeq, 2, 4);
+		setLong(buffer, mSsrc, 8, 12);
+	}
+
+	/** Gives the next sequence number to the packet with that number in the stream. */
+	private void count(long number) {
+		// The sequence numbers only map to the packets of the stream contiguously from there
+		if (mFirstNumber < 0 || mResumed) {
+			mFirstNumber = number;
+			mResumed = false;
+		}
+		mNumber = number;
+		mSeq++;
+	}
+
+	/** Writes a sequence number used before and the SSRC of this destination in the packet. */
+	void prepare(byte[] buffer, int seq) {
+		setLong(buffer, seq, 2, 4);
+		setLong(buffer, mSsrc, 8, 12);
+	}
+
+	/**
+	 * Returns the number in the stream of the packet that this destination received
+	 * with that sequence number, or -1 if it was never sent to this destination.
+	 */
+	long numberOf(int seq) {
+		long number = mNumber - ((mSeq - seq) & 0xFFFF);
+		return mFirstNumber >= 0 && number >= mFirstNumber ? number : -1;
+	}
+
+	/**
+	 * Handles an RTCP packet sent by the receiver, on the RTCP port of its
+	 * Sender Reports or on its interleaved RTCP channel.
+	 */
+	public void onRtcp(ByteBuffer packet) {
+		RtcpParser.parse(packet, mFeedback);
+	}
+
+	private class Feedback implements RtcpParser.Listener {
+
+		@Override
+		public void onNack(int ssrc, int pid, int blp) {
+			if (ssrc == mSsrc) mSocket.retransmit(RtpDestination.this, pid, blp);
+		}
+
+		@Override
+		public void onReceiverReport(int ssrc, int fractionLost, int cumulativeLost, int highestSeq, int jitter, int lsr, int dlsr) {
+			if (ssrc != mSsrc) return;
+			mFractionLost = fractionLost;
+			mCumulativeLost = cumulativeLost;
+			mJitter = jitter;
+			if (lsr != 0) {
+				// RTT = now - LSR - DLSR, in 1/65536 seconds
+				long rtt = (SenderReport.compactNtp(System.nanoTime()) - lsr - dlsr) & 0xFFFFFFFFL;
+				if (rtt < 65536*10) mRoundTripTime = (int) (rtt*1000/65536);
+			}
+			mReportTime = SystemClock.elapsedRealtime();
+			mSocket.onReceiverReport(RtpDestination.this);
+		}
+
+		@Override
+		public void onKeyFrameRequest(int ssrc) {
+			if (ssrc == mSsrc) mSocket.onKeyFrameRequest(RtpDestination.this);
+		}
+
+	}
+
+	/**
+	 * Sends the packet if the send buffer has room for it. It never waits: the Thread of the
+	 * {@link RtpScheduler} sends the packets of every stream, a congested receiver must not 
+	 * delay the others. When the send buffer is full, only this packet is dropped for this destination.
+	 * @param payload The payload following the header or null
+	 * @return false if the packet was dropped
+	 */
+	boolean write(ByteBuffer header, ByteBuffer payload) throws IOException {
+		if (mTransport.write(header, payload)) return true;
+		mDropped++;
+		return false;
+	}
+
+	/**
+	 * Sends a packet of the stream if the send buffer has room for it, like {@link #write(ByteBuffer, ByteBuffer)},
+	 * but the packet only takes a sequence number if it was sent: it can be offered again later.
+	 * @param number The number of the packet in the stream
+	 * @return false if the send buffer is full
+	 */
+	boolean offer(ByteBuffer packet, long number) throws IOException {
+		prepare(packet.array(), mSeq + 1);
+		if (!mTransport.write(packet, null)) return false;
+		count(number);
+		return true;
+	}
+
+	private static void setLong(byte[] buffer, long n, int begin, int end) {
+		for (end--; end >= begin; end--) {
+			buffer[end] = (byte) (n % 256);
+			n >>= 8;
+		}
+	}
+
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and histograms of an {@link RtpSocket}, to tell whether a stream is limited 
+ * by the CPU, the encoder or the network.
+ * <p>
+ * Each value is only written by one thread, the packetizer or the Thread of the {@link RtpScheduler},
+ * and may be read at any time from another one. {@link #write(StringBuilder)} exports
+ * the metrics of every socket currently sending in the Prometheus text format.
+ */
+public class RtpMetrics {
+
+	private static final long MS = 1000000L;
+	private static final long[] WAIT_BUCKETS = {10000, 100000, MS, 5*MS, 10*MS, 20*MS, 50*MS, 100*MS, 500*MS, 1000*MS};
+	private static final long[] SIZE_BUCKETS = {256, 1024, 4096, 16384, 65536, 262144, 1048576};
+	private static final long[] INTERVAL_BUCKETS = {500*MS, 1000*MS, 2000*MS, 5000*MS, 10000*MS, 30000*MS};
+
+	private static final List<RtpSocket> sSockets = new CopyOnWriteArrayList<RtpSocket>();
+
+	private volatile String mName = "rtp";
+	private volatile long mPackets = 0, mBytes = 0, mErrors = 0, mDropped = 0;
+	private volatile int mHighWater = 0;
+	private long mFrameBytes = 0, mLastKeyFrame = -1;
+
+	final Histogram mRequestWait = new Histogram(WAIT_BUCKETS);
+	final Histogram mPacingLag = new Histogram(WAIT_BUCKETS);
+	final Histogram mFrameSizes = new Histogram(SIZE_BUCKETS);
+	final Histogram mKeyFrameIntervals = new Histogram(INTERVAL_BUCKETS);
+	final Histogram mDequeueLatency = new Histogram(WAIT_BUCKETS);
+
+	/** Sets the name of the stream in the exported metrics, the name of the packetizer by default. */
+	public void setName(String name) {
+		mName = name;
+	}
+
+	public String getName() {
+		return mName;
+	}
+
+	/** Returns the number of packets of the stream sent, retransmissions excluded. */
+	public long getPacketCount() {
+		return mPackets;
+	}
+
+	/** Returns the number of bytes of the stream sent, RTP headers included. */
+	public long getByteCount() {
+		return mBytes;
+	}
+
+	/** Returns the number of times a packet could not be sent to a destination because of an error. */
+	public long getErrorCount() {
+		return mErrors;
+	}
+
+	/** Returns the number of times a packet was dropped for a destination because its send buffer was full. */
+	public long getDroppedCount() {
+		return mDropped;
+	}
+
+	/** Returns the largest number of packets that waited in the FIFO of the socket. */
+	public int getHighWaterMark() {
+		return mHighWater;
+	}
+
+	/** Called by the Thread of the scheduler once a packet was sent to every destination. */
+	void onSent(int length) {
+		mPackets++;
+		mBytes += length;
+	}
+
+	void onError() {
+		mErrors++;
+	}
+
+	void onDropped() {
+		mDropped++;
+	}
+
+	/** Called by the packetizer with the number of packets in the FIFO. */
+	void onDepth(int depth) {
+		if (depth > mHighWater) mHighWater = depth;
+	}
+
+	/** 
+	 * Called by the packetizer for each packet committed.
+	 * @param marker True for the last packet of a frame
+	 */
+	void onCommit(int length, boolean marker) {
+		mFrameBytes += length;
+		if (marker) {
+			mFrameSizes.add(mFrameBytes);
+			mFrameBytes = 0;
+		}
+	}
+
+	/** Called by the packetizer with the timestamp in ns of each key frame. */
+	void onKeyFrame(long timestamp) {
+		if (mLastKeyFrame >= 0 && timestamp > mLastKeyFrame) mKeyFrameIntervals.add(timestamp-mLastKeyFrame);
+		mLastKeyFrame = timestamp;
+	}
+
+	/** Called by the {@link MediaCodecInputStream} with the time it waited for an output buffer of the encoder, in ns. */
+	void onDequeue(long latency) {
+		mDequeueLatency.add(latency);
+	}
+
+	static void register(RtpSocket socket) {
+		sSockets.add(socket);
+	}
+
+	static void unregister(RtpSocket socket) {
+		sSockets.remove(socket);
+	}
+
+	/** Appends the metrics of every socket currently sending, in the Prometheus text format. */
+	public static void write(StringBuilder out) {
+		List<RtpSocket> sockets = sSockets;
+
+		header(out, "rtp_packets_sent_total", "counter", "Packets of the stream sent, retransmissions excluded");
+		for (RtpSocket s : sockets) sample(out, "rtp_packets_sent_total", s, s.getMetrics().mPackets);
+		header(out, "rtp_bytes_sent_total", "counter", "Bytes of the stream sent, RTP headers included");
+		for (RtpSocket s : sockets) sample(out, "rtp_bytes_sent_total", s, s.getMetrics().mBytes);
+		header(out, "rtp_send_errors_total", "counter", "Packets not sent to a destination because of an error");
+		for (RtpSocket s : sockets) sample(out, "rtp_send_errors_total", s, s.getMetrics().mErrors);
+		header(out, "rtp_send_dropped_total", "counter", "Packets not sent to a destination because its send buffer was full");
+		for (RtpSocket s : sockets) sample(out, "rtp_send_dropped_total", s, s.getMetrics().mDropped);
+		header(out, "rtp_fifo_depth", "gauge", "Packets waiting in the FIFO of the socket");
+		for (RtpSocket s : sockets) sample(out, "rtp_fifo_depth", s, s.getFifoDepth());
+		header(out, "rtp_fifo_high_water", "gauge", "Largest number of packets that waited in the FIFO");
+		for (RtpSocket s : sockets) sample(out, "rtp_fifo_high_water", s, s.getMetrics().mHighWater);
+		header(out, "rtp_destinations", "gauge", "Receivers of the stream");
+		for (RtpSocket s : sockets) sample(out, "rtp_destinations", s, s.getDestinationCount());
+		header(out, "rtp_bitrate_bps", "gauge", "Average bitrate of the stream");
+		for (RtpSocket s : sockets) sample(out, "rtp_bitrate_bps", s, s.getBitrate());
+
+		header(out, "rtp_request_buffer_wait_seconds", "histogram", "Time the packetizer waited for a free slot of the FIFO");
+		for (RtpSocket s : sockets) s.getMetrics().mRequestWait.write(out, "rtp_request_buffer_wait_seconds", s, 1000000000L);
+		header(out, "rtp_pacing_lag_seconds", "histogram", "Delay between the time a packet was due and the time it was sent");
+		for (RtpSocket s : sockets) s.getMetrics().mPacingLag.write(out, "rtp_pacing_lag_seconds", s, 1000000000L);
+		header(out, "rtp_frame_size_bytes", "histogram", "Size of the frames, up to the packets with the marker bit");
+		for (RtpSocket s : sockets) s.getMetrics().mFrameSizes.write(out, "rtp_frame_size_bytes", s, 1);
+		header(out, "rtp_keyframe_interval_seconds", "histogram", "Time between two key frames");
+		for (RtpSocket s : sockets) s.getMetrics().mKeyFrameIntervals.write(out, "rtp_keyframe_interval_seconds", s, 1000000000L);
+		header(out, "rtp_encoder_dequeue_seconds", "histogram", "Time the packetizer waited for an output buffer of the encoder");
+		for (RtpSocket s : sockets) s.getMetrics().mDequeueLatency.write(out, "rtp_encoder_dequeue_seconds", s, 1000000000L);
+	}
+
+	private static void header(StringBuilder out, String name, String type, String help) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void labels(StringBuilder out, RtpSocket socket) {
+		out.append("{stream=\"").append(socket.getMetrics().mName);
+		out.append("\",ssrc=\"").append(Integer.toHexString(socket.getSSRC())).append('"');
+	}
+
+	private static void sample(StringBuilder out, String name, RtpSocket socket, long value) {
+		out.append(name);
+		labels(out, socket);
+		out.append("} ").append(value).append('\n');
+	}
+
+	/** A histogram with fixed buckets, written by one thread. */
+	static class Histogram {
+
+		private final long[] mBounds;
+		// One count per bucket, then one for the values above the last bound, the sum and the count 
+		private final AtomicLongArray mCounts;
+
+		Histogram(long[] bounds) {
+			mBounds = bounds;
+			mCounts = new AtomicLongArray(bounds.length + 3);
+		}
+
+		void add(long value) {
+			int i = 0;
+			while (i < mBounds.length && value > mBounds[i]) i++;
+			int n = mBounds.length;
+			mCounts.lazySet(i, mCounts.get(i) + 1);
+			mCounts.lazySet(n + 1, mCounts.get(n + 1) + value);
+			mCounts.lazySet(n + 2, mCounts.get(n + 2) + 1);
+		}
+
+		/** Writes the cumulative buckets, the sum and the count, the bounds and the sum are divided by unit. */
+		void write(StringBuilder out, String name, RtpSocket socket, long unit) {
+			long cumulative = 0;
+			for (int i = 0; i <= mBounds.length; i++) {
+				cumulative += mCounts.get(i);
+				out.append(name).append("_bucket");
+				labels(out, socket);
+				out.append(",le=\"");
+				if (i < mBounds.length) out.append(format(mBounds[i], unit));
+				else out.append("+Inf");
+				out.append("\"} ").append(cumulative).append('\n');
+			}
+			out.append(name).append("_sum");
+			labels(out, socket);
+			out.append("} ").append(format(mCounts.get(mBounds.length + 1), unit)).append('\n');
+			out.append(name).append("_count");
+			labels(out, socket);
+			out.append("} ").append(cumulative).append('\n');
+		}
+
+		private static String format(long value, long unit) {
+			return value % unit == 0 ? String.valueOf(value/unit) : String.valueOf((double) value/unit);
+		}
+
+	}
+
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import android.util.Log;
+
+/**
+ * Sends the packets of every {@link RtpSocket} from a single Thread, so that the number of
+ * threads stays the same whatever the number of streams and receivers.
+ * <p>
+ * The sockets that have packets waiting are kept in a hashed timing wheel, keyed on the time
+ * their next packet is due: each slot holds the sockets due during one tick, whatever the turn 
+ * of the wheel, and the Thread visits the slots one tick after the other. A socket is only in the
+ * wheel once, it sends all the packets that are due when its turn comes. 
+ * Every {@link #HOUSEKEEPING} ns, the Thread also sends the RTCP Sender Reports that are due
+ * and forgets the sockets that stopped sending.
+ */
+final class RtpScheduler implements Runnable {
+
+	public static final String TAG = "RtpScheduler";
+
+	/** Resolution of the wheel, packets are sent at most that late. */
+	private static final long TICK = TimeUnit.MICROSECONDS.toNanos(500);
+	/** Number of slots of the wheel, a turn lasts 128 ms. */
+	private static final int SLOTS = 256;
+	private static final long HOUSEKEEPING = TimeUnit.MILLISECONDS.toNanos(100);
+
+	private static RtpScheduler sInstance = null;
+
+	private final Thread mThread;
+	private final ConcurrentLinkedQueue<RtpSocket> mWakeups = new ConcurrentLinkedQueue<RtpSocket>();
+
+	// Only used by the Thread of the scheduler
+	private final RtpSocket[] mWheel = new RtpSocket[SLOTS];
+	private final ArrayList<RtpSocket> mSockets = new ArrayList<RtpSocket>();
+	private ArrayDeque<RtpSocket> mReady = new ArrayDeque<RtpSocket>(), mAgain = new ArrayDeque<RtpSocket>();
+	private final long mOrigin = System.nanoTime();
+	private long mTick = 0, mHousekeeping = 0;
+	private int mPending = 0;
+
+	/** Returns the scheduler shared by all the sockets, its Thread is started the first time. */
+	static synchronized RtpScheduler get() {
+		if (sInstance == null) {
+			sInstance = new RtpScheduler();
+			sInstance.mThread.start();
+		}
+		return sInstance;
+	}
+
+	private RtpScheduler() {
+		mThread = new Thread(this, TAG);
+	}
+
+	/** 
+	 * Called from any thread when a socket that was not scheduled has packets to send 
+	 * or retransmissions to do, the socket is handed to the scheduler until it is idle again.
+	 */
+	void wake(RtpSocket socket) {
+		mWakeups.add(socket);
+		LockSupport.unpark(mThread);
+	}
+
+	@Override
+	public void run() {
+		RtpSocket socket;
+		while (true) {
+			long now = System.nanoTime();
+
+			while ((socket = mWakeups.poll()) != null) {
+				if (!socket.mAttached) {
+					socket.mAttached = true;
+					mSockets.add(socket);
+					RtpMetrics.register(socket);
+				}
+				mReady.add(socket);
+			}
+
+			// Visits the slots of the ticks that elapsed, each slot only once after a long sleep
+			long tick = (now - mOrigin) / TICK;
+			if (mPending > 0) {
+				for (long t = Math.max(mTick, tick - SLOTS + 1); t <= tick; t++) expire((int) (t % SLOTS), tick);
+			}
+			mTick = tick + 1;
+
+			while ((socket = mReady.poll()) != null) {
+				send(socket);
+			}
+
+			if (now - mHousekeeping >= 0) {
+				mHousekeeping = now + HOUSEKEEPING;
+				for (int i = mSockets.size() - 1; i >= 0; i--) {
+					socket = mSockets.get(i);
+					if (!socket.housekeeping(now)) {
+						mSockets.remove(i);
+						socket.mAttached = false;
+						RtpMetrics.unregister(socket);
+					}
+				}
+			}
+
+			// The sockets that still had packets due after a batch go again right away
+			if (!mAgain.isEmpty()) {
+				ArrayDeque<RtpSocket> again = mAgain;
+				mAgain = mReady;
+				mReady = again;
+				continue;
+			}
+
+			if (!mWakeups.isEmpty()) continue;
+			if (mPending > 0) {
+				LockSupport.parkNanos(this, Math.min(mOrigin + mTick * TICK, mHousekeeping) - System.nanoTime());
+			} else if (!mSockets.isEmpty()) {
+				LockSupport.parkNanos(this, mHousekeeping - System.nanoTime());
+			} else {
+				LockSupport.park(this);
+			}
+			// The Thread is shared and must never die
+			Thread.interrupted();
+		}
+	}
+
+	/** Lets the socket send the packets that are due, and schedules it again if needed. */
+	private void send(RtpSocket socket) {
+		long next;
+		try {
+			next = socket.drain();
+		} catch (Exception e) {
+			// Tried again later rather than right away, the same packet would probably fail again
+			Log.e(TAG, "Could not send the packets of a stream", e);
+			next = System.nanoTime() + HOUSEKEEPING;
+		}
+		if (next > 0) {
+			schedule(socket, next);
+		} else if (next == 0 || socket.idle()) {
+			mAgain.add(socket);
+		}
+	}
+
+	/** Puts the socket in the slot of the first tick that starts after the deadline. */
+	private void schedule(RtpSocket socket, long deadline) {
+		long tick = (deadline - mOrigin + TICK - 1) / TICK;
+		if (tick < mTick) {
+			mAgain.add(socket);
+			return;
+		}
+		int slot = (int) (tick % SLOTS);
+		socket.mDueTick = tick;
+		socket.mWheelNext = mWheel[slot];
+		mWheel[slot] = socket;
+		mPending++;
+	}
+
+	/** Moves the sockets of the slot that are due at that tick to the ready list, the others wait for another turn. */
+	private void expire(int slot, long tick) {
+		RtpSocket socket = mWheel[slot], previous = null;
+		while (socket != null) {
+			RtpSocket next = socket.mWheelNext;
+			if (socket.mDueTick <= tick) {
+				if (previous == null) mWheel[slot] = next;
+				else previous.mWheelNext = next;
+				socket.mWheelNext = null;
+				mPending--;
+				mReady.add(socket);
+			} else {
+				previous = socket;
+			}
+			socket = next;
+		}
+	}
+
+}
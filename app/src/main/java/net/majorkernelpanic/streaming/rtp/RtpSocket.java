@@ -21,11 +21,17 @@
 package net.majorkernelpanic.streaming.rtp;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
-import java.net.MulticastSocket;
-import java.util.concurrent.Semaphore;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 import net.majorkernelpanic.streaming.rtcp.SenderReport;
 import android.os.SystemClock;
@@ -33,55 +39,140 @@ import android.util.Log;
 
 /**
  * A basic implementation of an RTP socket.
- * It implements a buffering mechanism, relying on a FIFO of buffers and a Thread.
+ * It implements a buffering mechanism, relying on a FIFO of buffers and the Thread
+ * of the {@link RtpScheduler}, which is shared by all the sockets.
  * That way, if a packetizer tries to send many packets too quickly, the FIFO will
  * grow and packets will be sent one by one smoothly.
+ * The FIFO is a lock-free {@link PacketFifo}: the packetizer must be the only 
+ * thread calling {@link #requestBuffer()} and {@link #commitBuffer(int)}.
+ * <p>
+ * Packets are built once by the packetizer and sent to every {@link RtpDestination}
+ * of the socket, so that many receivers can share the same encoder.
+ * <p>
+ * Unicast destinations are reached with connected non-blocking DatagramChannels that
+ * write straight from the buffers of the FIFO, and the scheduler sends every packet 
+ * already due in one pass.
  */
-public class RtpSocket implements Runnable {
+public class RtpSocket {
 
 	public static final String TAG = "RtpSocket";
 
 	public static final int RTP_HEADER_LENGTH = 12;
 	public static final int MTU = 1300;
 
-	private MulticastSocket mSocket;
-	private DatagramPacket[] mPackets;
+	/** Packets are sent as soon as they are due, a frame leaves as one burst. */
+	public static final int PACING_NONE = 0;
+	/** The packets of a frame are spread over a fraction of the frame interval. */
+	public static final int PACING_FRAME = 1;
+	/** The packets are spread at a multiple of the bitrate of the stream. */
+	public static final int PACING_BITRATE = 2;
+
+	/** Maximum number of packets sent before giving their slots back to the packetizer and letting the other sockets send theirs. */
+	private static final int MAX_BATCH = 64;
+	/** Bounds of the number of packets in the FIFO, each of them takes {@link #MTU} bytes. */
+	private static final int MIN_BUFFER_COUNT = 64, MAX_BUFFER_COUNT = 1024;
+	/** Maximum number of NACKs waiting for the scheduler, the others are ignored. */
+	private static final int MAX_PENDING_NACKS = 64;
+	/** How long a socket can stay without sending before the scheduler forgets it, in ns. */
+	private static final long IDLE_TIMEOUT = TimeUnit.SECONDS.toNanos(4);
+	/** Maximum number of packets of the group of pictures sent to a receiver that joined, per pass of the scheduler. */
+	private static final int REPLAY_BATCH = 16;
+	/** Delay between two passes while receivers catch up with the stream, in ns. */
+	private static final long REPLAY_INTERVAL = TimeUnit.MILLISECONDS.toNanos(2);
+	/** Bounds of SO_SNDBUF, in bytes. */
+	private static final int MIN_SEND_BUFFER = 64*1024, MAX_SEND_BUFFER = 1024*1024;
+
+	private DatagramChannel mChannel;
 	private byte[][] mBuffers;
+	private ByteBuffer[] mPackets;
+	private ByteBuffer[] mPayloads;
+	private PayloadOwner[] mOwners;
+	private int[] mPayloadOffsets, mReleases;
+	private int[] mLengths;
 	private long[] mTimestamps;
+	private boolean[] mKeyFrames;
 
 	private SenderReport mReport;
+	private RtpDestination mDestination;
+	private final CopyOnWriteArrayList<RtpDestination> mDestinations = new CopyOnWriteArrayList<RtpDestination>();
 	
-	private Semaphore mBufferRequested, mBufferCommitted;
-	private Thread mThread;
+	private PacketFifo mFifo;
+	// Set while the RtpScheduler has the socket: it has packets to send or is about to notice it has none left
+	private final AtomicBoolean mScheduled = new AtomicBoolean(false);
+	private long mDeadline, mLastSent;
+	private boolean mPaced = false;
+	// Only used by the Thread of the RtpScheduler
+	boolean mAttached = false;
+	long mDueTick;
+	RtpSocket mWheelNext;
 
-	private long mCacheSize;
+	private final Pacer mPacer = new Pacer();
+	private final RtcpReceiver mReceiver = new RtcpReceiver();
+	private final ConcurrentLinkedQueue<Nack> mNacks = new ConcurrentLinkedQueue<Nack>();
+	private volatile RetransmissionCache mCache = null;
+	private volatile FeedbackListener mFeedbackListener = null;
+	// False while every destination is paused
+	private boolean mPlaying = true;
+	private volatile GopCache mGopCache = null;
+	private boolean mKeyFrame = false;
+	private long mNumber = 0;
 	private long mClock = 0;
-	private long mOldTimestamp = 0;
-	private int mSsrc, mSeq = 0, mPort = -1;
-	private int mBufferCount, mBufferIn, mBufferOut;
-	private int mCount = 0;
+	private int mSsrc, mPort = -1;
+	private int mBufferCount, mBufferIn;
+	private int mTargetCount, mPeakDepth, mLowDepthCount;
+	private long mDepthUpdate = 0;
+	private int mTimeToLive = 1;
+	private volatile int mSendBufferSize = 0;
+	private long mSendBufferUpdate = 0;
 	
 	private AverageBitrate mAverageBitrate;
+	// Set by the Thread of the scheduler, the average is only reset by the Thread that pushes into it
+	private volatile boolean mResetBitrate = false;
+	private final RtpMetrics mMetrics = new RtpMetrics();
 
 	/**
-	 * This RTP socket implements a buffering mechanism relying on a FIFO of buffers and a Thread.
+	 * This RTP socket implements a buffering mechanism relying on a FIFO of buffers and the {@link RtpScheduler}.
 	 * @throws IOException
 	 */
 	public RtpSocket() {
 		
-		mCacheSize = 00;
-		mBufferCount = 300; // TODO: reajust that when the FIFO is full 
-		mBuffers = new byte[mBufferCount][];
-		mPackets = new DatagramPacket[mBufferCount];
+		mBufferCount = mTargetCount = 256;
+		mBuffers = new byte[MAX_BUFFER_COUNT][];
+		mPackets = new ByteBuffer[MAX_BUFFER_COUNT];
+		mLengths = new int[MAX_BUFFER_COUNT];
+		mTimestamps = new long[MAX_BUFFER_COUNT];
+		mPayloads = new ByteBuffer[MAX_BUFFER_COUNT];
+		mOwners = new PayloadOwner[MAX_BUFFER_COUNT];
+		mPayloadOffsets = new int[MAX_BUFFER_COUNT];
+		mReleases = new int[MAX_BUFFER_COUNT];
+		mKeyFrames = new boolean[MAX_BUFFER_COUNT];
+		mFifo = new PacketFifo(mBufferCount);
 		mReport = new SenderReport();
 		mAverageBitrate = new AverageBitrate();
 		
 		resetFifo();
+		allocateBuffers(mBufferCount);
+
+		try {
+			mChannel = UdpTransport.open();
+		} catch (Exception e) {
+			throw new RuntimeException(e.getMessage());
+		}
+		
+	}
 
-		for (int i=0; i<mBufferCount; i++) {
+	/** Allocates the buffers of the first count slots and frees the others. */
+	private void allocateBuffers(int count) {
+		for (int i=0; i<MAX_BUFFER_COUNT; i++) {
+			if (i>=count) {
+				mBuffers[i] = null;
+				mPackets[i] = null;
+				continue;
+			}
+			if (mBuffers[i] != null) continue;
 
 			mBuffers[i] = new byte[MTU];
-			mPackets[i] = new DatagramPacket(mBuffers[i], 1);
+			mPackets[i] = ByteBuffer.wrap(mBuffers[i]);
 
 			/*							     Version(2)  Padding(0)					 					*/
 			/*									 ^		  ^			Extension(0)						*/
@@ -98,40 +189,45 @@ public class RtpSocket implements Runnable {
 			/* Byte 2,3        ->  Sequence Number                   */
 			/* Byte 4,5,6,7    ->  Timestamp                         */
 			/* Byte 8,9,10,11  ->  Sync Source Identifier            */
+			setLong(mBuffers[i], mSsrc, 8, 12);
 
 		}
-
-		try {
-		mSocket = new MulticastSocket();
-		} catch (Exception e) {
-			throw new RuntimeException(e.getMessage());
-		}
-		
 	}
 
 	private void resetFifo() {
-		mCount = 0;
-		mBufferIn = 0;
-		mBufferOut = 0;
-		mTimestamps = new long[mBufferCount];
-		mBufferRequested = new Semaphore(mBufferCount);
-		mBufferCommitted = new Semaphore(0);
+		if (mGopCache != null) mGopCache.invalidate();
+		// The payloads that will never be sent still have to be given back
+		for (int i=0, index; (index = mFifo.peek(i)) >= 0; i++) {
+			releasePayload(index);
+		}
+		mFifo.clear();
+		mPacer.reset();
+		mPaced = false;
 		mReport.reset();
-		mAverageBitrate.reset();
+		mResetBitrate = true;
 	}
 	
 	/** Closes the underlying socket. */
 	public void close() {
-		mSocket.close();
+		mReceiver.close();
+		for (RtpDestination destination : mDestinations) {
+			destination.getTransport().close();
+			if (destination != mDestination) destination.getRtcpSocket().close();
+		}
+		mDestinations.clear();
+		try {
+			mChannel.close();
+		} catch (IOException ignore) {}
 	}
 
 	/** Sets the SSRC of the stream. */
 	public void setSSRC(int ssrc) {
 		this.mSsrc = ssrc;
-		for (int i=0;i<mBufferCount;i++) {
-			setLong(mBuffers[i], ssrc,8,12);
+		for (int i=0;i<MAX_BUFFER_COUNT;i++) {
+			if (mBuffers[i] != null) setLong(mBuffers[i], ssrc,8,12);
 		}
 		mReport.setSSRC(mSsrc);
+		if (mDestination != null) mDestination.setSSRC(mSsrc);
 	}
 
 	/** Returns the SSRC of the stream. */
@@ -146,22 +242,191 @@ public class RtpSocket implements Runnable {
 
 	/** Sets the size of the FIFO in ms. */
 	public void setCacheSize(long cacheSize) {
-		mCacheSize = cacheSize;
+		mPacer.setDelay(TimeUnit.MILLISECONDS.toNanos(cacheSize));
+	}
+	
+	/**
+	 * Sets how the packets of a frame are spread over time, the default is 
+	 * {@link #PACING_FRAME} over half of the frame interval.
+	 * @param mode {@link #PACING_NONE}, {@link #PACING_FRAME} or {@link #PACING_BITRATE}
+	 * @param factor The fraction of the frame interval used by {@link #PACING_FRAME}, 
+	 * or the multiple of the bitrate used by {@link #PACING_BITRATE}
+	 */
+	public void setPacing(int mode, float factor) {
+		mPacer.setMode(mode, factor);
+	}
+
+	/** Returns {@link #PACING_NONE}, {@link #PACING_FRAME} or {@link #PACING_BITRATE}. */
+	public int getPacing() {
+		return mPacer.getMode();
 	}
 	
+	/**
+	 * Keeps a copy of the packets sent during the last duration ms, so that the packets 
+	 * receivers report as lost in RTCP Generic NACKs (RFC 4585) can be sent again. 
+	 * @param duration 0 to disable retransmissions, which is the default
+	 */
+	public void setRetransmissionCache(long duration) {
+		mCache = duration > 0 ? new RetransmissionCache(TimeUnit.MILLISECONDS.toNanos(duration)) : null;
+	}
+
+	/**
+	 * Keeps a copy of the packets sent since the last key frame, which are sent as fast as the 
+	 * network takes them to the receivers that join the stream so that they can start decoding it right away.
+	 * The packetizer must call {@link #markKeyFrame()} for it to work.
+	 * @param size The maximum number of bytes kept, the group of pictures is not replayed 
+	 * if it is bigger; 0 to disable the cache, which is the default
+	 */
+	public void setGopCache(int size) {
+		mGopCache = size > 0 ? new GopCache(size) : null;
+	}
+
+	/** Returns true if lost packets can be sent again, see {@link #setRetransmissionCache(long)}. */
+	public boolean isRetransmissionEnabled() {
+		return mCache != null;
+	}
+
 	/** Sets the Time To Live of the UDP packets. */
 	public void setTimeToLive(int ttl) throws IOException {
-		mSocket.setTimeToLive(ttl);
+		mTimeToLive = ttl;
+		for (RtpDestination destination : mDestinations) {
+			destination.getTransport().setTimeToLive(ttl);
+		}
 	}
 
-	/** Sets the destination address and to which the packets will be sent. */
-	public void setDestination(InetAddress dest, int dport, int rtcpPort) {
+	/** 
+	 * Sets the destination address and to which the packets will be sent.
+	 * Replaces the destination previously set with this method, but not the 
+	 * ones added with {@link #addDestination(InetAddress, int, int)}.
+	 */
+	public synchronized void setDestination(InetAddress dest, int dport, int rtcpPort) {
 		mPort = dport;
-		for (int i=0;i<mBufferCount;i++) {
-			mPackets[i].setPort(dport);
-			mPackets[i].setAddress(dest);
+		if (mDestination != null) {
+			mDestinations.remove(mDestination);
+			mDestination.getTransport().close();
+		}
+		try {
+			RtpTransport transport = dest.isMulticastAddress() ? 
+					new MulticastTransport(dest, dport, mTimeToLive) : 
+						new UdpTransport(mChannel, dest, dport);
+			mReport.setDestination(dest, rtcpPort);
+			mDestination = new RtpDestination(this, configure(transport), dest, dport, rtcpPort, mSsrc, mReport);
+		} catch (IOException e) {
+			throw new RuntimeException(e.getMessage());
+		}
+		mDestinations.add(mDestination);
+		mReceiver.register(mDestination);
+	}
+
+	/**
+	 * Adds a receiver to the stream. It gets its own SSRC, sequence numbers and RTCP socket.
+	 * If packets are already sent to this address and port, the existing destination is returned.
+	 * @param dest The destination address
+	 * @param rtpPort Destination port that will be used for RTP
+	 * @param rtcpPort Destination port that will be used for RTCP
+	 */
+	public synchronized RtpDestination addDestination(InetAddress dest, int rtpPort, int rtcpPort) throws IOException {
+		for (RtpDestination destination : mDestinations) {
+			if (destination.matches(dest, rtpPort)) {
+				if (destination != mDestination) destination.mUsers++;
+				return destination;
+			}
+		}
+		RtpTransport transport = dest.isMulticastAddress() ? 
+				new MulticastTransport(dest, rtpPort, mTimeToLive) : 
+					new UdpTransport(dest, rtpPort);
+		SenderReport report = new SenderReport();
+		report.setDestination(dest, rtcpPort);
+		RtpDestination destination = new RtpDestination(this, configure(transport), dest, rtpPort, rtcpPort, new Random().nextInt(), report);
+		mDestinations.add(destination);
+		mReceiver.register(destination);
+		updatePlaying();
+		return destination;
+	}
+
+	/**
+	 * Adds a receiver that gets the packets over its RTSP connection (RTP/AVP/TCP).
+	 * If packets are already sent to this channel, the existing destination is returned.
+	 * @param output The output of the RTSP connection of the receiver
+	 * @param rtpChannel The interleaved channel used for RTP
+	 * @param rtcpChannel The interleaved channel used for RTCP
+	 */
+	public synchronized RtpDestination addDestination(InterleavedOutput output, int rtpChannel, int rtcpChannel) {
+		for (RtpDestination destination : mDestinations) {
+			if (destination.matches(output, rtpChannel)) {
+				if (destination != mDestination) destination.mUsers++;
+				return destination;
+			}
 		}
-		mReport.setDestination(dest, rtcpPort);
+		SenderReport report = new SenderReport();
+		report.setInterleaved(output, rtcpChannel);
+		RtpDestination destination = new RtpDestination(this, new InterleavedTransport(output, rtpChannel), output.getAddress(), rtpChannel, rtcpChannel, new Random().nextInt(), report);
+		mDestinations.add(destination);
+		updatePlaying();
+		return destination;
+	}
+
+	/** 
+	 * Stops sending packets to a destination added with {@link #addDestination(InetAddress, int, int)}
+	 * or {@link #addDestination(InterleavedOutput, int, int)}. 
+	 */
+	public synchronized void removeDestination(RtpDestination destination) {
+		if (destination == null || destination == mDestination) return;
+		if (--destination.mUsers <= 0 && mDestinations.remove(destination)) {
+			destination.getTransport().close();
+			destination.getRtcpSocket().close();
+			updatePlaying();
+		}
+	}
+
+	/**
+	 * Stops or resumes sending packets to a destination without removing it: it keeps its SSRC 
+	 * and its sequence numbers go on from where they stopped. A destination that resumes does 
+	 * not get the group of pictures again, it waits for the key frame the encoder is asked for.
+	 * The {@link FeedbackListener} is told when every destination is paused, and when one resumes.
+	 */
+	public synchronized void setPaused(RtpDestination destination, boolean paused) {
+		if (destination.mPaused == paused) return;
+		if (!paused) destination.mResumed = true;
+		destination.mPaused = paused;
+		updatePlaying();
+		if (!paused) onKeyFrameRequest(destination);
+	}
+
+	private void updatePlaying() {
+		boolean playing = mDestinations.isEmpty();
+		for (RtpDestination destination : mDestinations) {
+			if (!destination.mPaused) playing = true;
+		}
+		if (playing == mPlaying) return;
+		mPlaying = playing;
+		FeedbackListener listener = mFeedbackListener;
+		if (listener != null) listener.onPlayingChanged(this, playing);
+	}
+
+	/** Returns the receivers of the stream. */
+	public List<RtpDestination> getDestinations() {
+		return Collections.unmodifiableList(mDestinations);
+	}
+
+	/** Sets the listener notified of the RTCP feedback of the receivers. */
+	public void setFeedbackListener(FeedbackListener listener) {
+		mFeedbackListener = listener;
+	}
+
+	void onReceiverReport(RtpDestination destination) {
+		FeedbackListener listener = mFeedbackListener;
+		if (listener != null) listener.onReceiverReport(this, destination);
+	}
+
+	void onKeyFrameRequest(RtpDestination destination) {
+		FeedbackListener listener = mFeedbackListener;
+		if (listener != null) listener.onKeyFrameRequest(this, destination);
+	}
+
+	/** Returns the number of receivers of the stream. */
+	public int getDestinationCount() {
+		return mDestinations.size();
 	}
 
 	public int getPort() {
@@ -169,7 +434,8 @@ public class RtpSocket implements Runnable {
 	}
 
 	public int getLocalPort() {
-		return mSocket.getLocalPort();
+		RtpDestination destination = mDestination;
+		return destination != null ? destination.getTransport().getLocalPort() : mChannel.socket().getLocalPort();
 	}
 
 	public SenderReport getRtcpSocket() {
@@ -182,39 +448,115 @@ public class RtpSocket implements Runnable {
 	 * @throws InterruptedException 
 	 **/
 	public byte[] requestBuffer() throws InterruptedException {
-		mBufferRequested.acquire();
+		if (mTargetCount != mBufferCount && mFifo.size() == 0) {
+			// The slots can only be remapped when the scheduler holds none of them
+			allocateBuffers(Math.max(mTargetCount, mBufferCount));
+			mFifo.setCapacity(mTargetCount);
+			allocateBuffers(mTargetCount);
+			mBufferCount = mTargetCount;
+		}
+		long start = System.nanoTime();
+		mBufferIn = mFifo.acquire();
+		mMetrics.mRequestWait.add(System.nanoTime()-start);
 		mBuffers[mBufferIn][1] &= 0x7F;
 		return mBuffers[mBufferIn];
 	}
 
-	/** Puts the buffer back into the FIFO without sending the packet. */
+	/** 
+	 * Puts the buffer back into the FIFO without sending the packet. 
+	 * The next call to {@link #requestBuffer()} will return it again.
+	 */
 	public void commitBuffer() throws IOException {
-
-		if (mThread == null) {
-			mThread = new Thread(this);
-			mThread.start();
-		}
-		
-		if (++mBufferIn>=mBufferCount) mBufferIn = 0;
-		mBufferCommitted.release();
-
+		schedule();
 	}	
 	
 	/** Sends the RTP packet over the network. */
 	public void commitBuffer(int length) throws IOException {
-		updateSequence();
-		mPackets[mBufferIn].setLength(length);
+		commitBuffer(length, null, null, -1);
+	}
 
-		mAverageBitrate.push(length);
+	/**
+	 * Sends the RTP packet over the network. The remaining bytes of the payload follow the 
+	 * length first bytes of the buffer in the packet, they are not copied.
+	 * The payload must not be modified until the packet is sent.
+	 * @param length The length of the header of the packet in the buffer
+	 * @param payload The payload of the packet, the RtpSocket keeps a reference to it
+	 * @param owner The owner of the payload or null, the packet is not sent if it 
+	 * is not {@link PayloadOwner#isAvailable() available} anymore when its turn comes
+	 * @param release If not -1, the scheduler calls owner.releasePayload(release) once 
+	 * the packet is sent
+	 */
+	public void commitBuffer(int length, ByteBuffer payload, PayloadOwner owner, int release) throws IOException {
+		mLengths[mBufferIn] = length;
+		mPayloads[mBufferIn] = payload;
+		mPayloadOffsets[mBufferIn] = payload != null ? payload.position() : 0;
+		mOwners[mBufferIn] = owner;
+		mReleases[mBufferIn] = release;
+		mKeyFrames[mBufferIn] = mKeyFrame;
+		if (mKeyFrame) mMetrics.onKeyFrame(mTimestamps[mBufferIn]);
+		mKeyFrame = false;
 
-		if (++mBufferIn>=mBufferCount) mBufferIn = 0;
-		mBufferCommitted.release();
+		int size = payload != null ? length+payload.remaining() : length;
+		if (mResetBitrate) {
+			mResetBitrate = false;
+			mAverageBitrate.reset();
+		}
+		mAverageBitrate.push(size);
+		mMetrics.onCommit(size, (mBuffers[mBufferIn][1] & 0x80) != 0);
 
-		if (mThread == null) {
-			mThread = new Thread(this);
-			mThread.start();
-		}		
-		
+		mFifo.publish();
+		updateBufferCount();
+		schedule();
+	}
+
+	/** Hands the socket to the {@link RtpScheduler}, unless it already has it. */
+	private void schedule() {
+		if (mScheduled.compareAndSet(false, true)) RtpScheduler.get().wake(this);
+	}
+
+	/**
+	 * Returns true if the FIFO is so full that adding that many packets to it would delay 
+	 * the packets of reference frames. The packetizer should drop the packets of 
+	 * non-reference frames instead of sending them in that case.
+	 * @param packets The number of packets the packetizer is about to send
+	 */
+	public boolean isCongested(int packets) {
+		int depth = mFifo.size() + packets;
+		if (depth > mPeakDepth) mPeakDepth = depth;
+		return depth > mBufferCount*3/4;
+	}
+
+	/** 
+	 * Once per second, doubles the number of slots of the FIFO if it was close to full,
+	 * and halves it when it stayed mostly empty for a few seconds.
+	 */
+	private void updateBufferCount() {
+		int depth = mFifo.size();
+		if (depth > mPeakDepth) mPeakDepth = depth;
+		mMetrics.onDepth(depth);
+		long now = SystemClock.elapsedRealtime();
+		if (now-mDepthUpdate<1000) return;
+		mDepthUpdate = now;
+		if (mPeakDepth >= mBufferCount*3/4) {
+			mTargetCount = Math.min(mBufferCount*2, MAX_BUFFER_COUNT);
+			mLowDepthCount = 0;
+		} else if (mPeakDepth < mBufferCount/4 && ++mLowDepthCount >= 5) {
+			mTargetCount = Math.max(mBufferCount/2, MIN_BUFFER_COUNT);
+			mLowDepthCount = 0;
+		}
+		mPeakDepth = 0;
+	}
+
+	/** 
+	 * Waits until the scheduler has sent every packet of the FIFO. 
+	 * Must be called before freeing the payloads given to {@link #commitBuffer(int, ByteBuffer, PayloadOwner, int)}.
+	 * @param timeout The maximum time to wait in ms
+	 */
+	public void flush(long timeout) {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		while (mFifo.size() > 0 && mScheduled.get() && deadline-System.nanoTime() > 0) {
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+		}
 	}
 
 	/** Returns an approximation of the bitrate of the RTP stream in bit per seconde. */
@@ -222,9 +564,14 @@ public class RtpSocket implements Runnable {
 		return mAverageBitrate.average();
 	}
 
-	/** Increments the sequence number. */
-	private void updateSequence() {
-		setLong(mBuffers[mBufferIn], ++mSeq, 2, 4);
+	/** Returns the counters and histograms of the stream, they are exported by {@link RtpMetrics#write(StringBuilder)} while it is sent. */
+	public RtpMetrics getMetrics() {
+		return mMetrics;
+	}
+
+	/** Returns the number of packets waiting in the FIFO. */
+	int getFifoDepth() {
+		return mFifo.size();
 	}
 
 	/** 
@@ -241,44 +588,346 @@ public class RtpSocket implements Runnable {
 		mBuffers[mBufferIn][1] |= 0x80;
 	}
 
-	/** The Thread sends the packets in the FIFO one by one at a constant rate. */
-	@Override
-	public void run() {
-		Statistics stats = new Statistics(50,3000);
+	/** 
+	 * The next packet committed is the first one of a key frame, parameter sets included. 
+	 * @see #setGopCache(int)
+	 */
+	public void markKeyFrame() {
+		mKeyFrame = true;
+	}
+
+	/**
+	 * Called by the {@link RtpScheduler}, sends the packets of the FIFO that are due,
+	 * see {@link #setCacheSize(long)} and {@link #setPacing(int, float)}, and the
+	 * retransmissions requested by the receivers.
+	 * @return The time at which the next packet is due, in the System.nanoTime() timebase,
+	 * 0 if packets are still due, or -1 if the FIFO is empty
+	 */
+	long drain() throws IOException {
+		int index, count = 0;
+		long next = -1, now = System.nanoTime();
+		try {
+			// An IDR frame turns into dozens of FU-A packets that are all committed at once,
+			// they are sent in one pass and their slots are given back together
+			while ((index = mFifo.peek(count)) >= 0) {
+				if (count == MAX_BATCH) {
+					next = 0;
+					break;
+				}
+				if (!mPaced) {
+					mDeadline = pace(index, count);
+					mPaced = true;
+				}
+				if (mDeadline - now > 0 && mDeadline - (now = System.nanoTime()) > 0) {
+					next = mDeadline;
+					break;
+				}
+				mPaced = false;
+				mMetrics.mPacingLag.add(now - mDeadline);
+				try {
+					send(index);
+				} catch (Exception e) {
+					// The slot is given back anyway, or the same packet would fail again and again
+					mMetrics.onError();
+					Log.e(TAG, "Could not send a packet", e);
+				}
+				count++;
+			}
+		} finally {
+			if (count > 0) {
+				mFifo.release(count);
+				mLastSent = now;
+			}
+		}
+		retransmit();
+		if (replay()) {
+			long again = System.nanoTime() + REPLAY_INTERVAL;
+			if (next < 0 || next > 0 && next - again > 0) next = again;
+		}
+		return next;
+	}
+
+	/**
+	 * Called by the {@link RtpScheduler} when the FIFO is empty.
+	 * @return true if the socket has to be drained again: a packet or a NACK came meanwhile
+	 */
+	boolean idle() {
+		mScheduled.set(false);
+		return (mFifo.size() > 0 || !mNacks.isEmpty()) && mScheduled.compareAndSet(false, true);
+	}
+
+	/**
+	 * Called by the {@link RtpScheduler} a few times per second: sends the RTCP Sender Reports 
+	 * that are due and adjusts the send buffers.
+	 * @return false if the socket has not sent anything for a while, it is reset and forgotten by the scheduler
+	 */
+	boolean housekeeping(long now) {
+		if (!mScheduled.get() && now - mLastSent > IDLE_TIMEOUT) {
+			resetFifo();
+			return false;
+		}
+		try {
+			for (RtpDestination destination : mDestinations) {
+				destination.getRtcpSocket().poll(now, mClock);
+			}
+			updateSendBufferSize();
+		} catch (IOException e) {
+			Log.w(TAG, "RTCP: "+e.getMessage());
+		}
+		return true;
+	}
+
+	/** 
+	 * Returns when the packet is due. 
+	 * @param offset The position of the packet in the FIFO 
+	 */
+	private long pace(int index, int offset) {
+		long timestamp = mTimestamps[index];
+		if (mPacer.isNewFrame(timestamp)) mPacer.startFrame(timestamp);
+		int mode = mPacer.getMode(), queued = 0, next;
+		if (mode == PACING_FRAME) {
+			// Counted again for every packet, more may have been committed since the previous one
+			while ((next = mFifo.peek(offset+queued+1)) >= 0 && mTimestamps[next] == timestamp) queued++;
+		}
+		int bitrate = mode == PACING_BITRATE ? mAverageBitrate.average() : 0;
+		return mPacer.next(mLengths[index], bitrate, queued);
+	}
+
+	/** Sends the packet in the FIFO to every destination, the payload is given back even if that fails. */
+	private void send(int index) throws IOException {
 		try {
-			// Caches mCacheSize milliseconds of the stream in the FIFO.
-			Thread.sleep(mCacheSize);
-			long delta = 0;
-			while (mBufferCommitted.tryAcquire(4,TimeUnit.SECONDS)) {
-				if (mOldTimestamp != 0) {
-					// We use our knowledge of the clock rate of the stream and the difference between two timestamps to
-					// compute the time lapse that the packet represents.
-					if ((mTimestamps[mBufferOut]-mOldTimestamp)>0) {
-						stats.push(mTimestamps[mBufferOut]-mOldTimestamp);
-						long d = stats.average()/1000000;
-						//Log.d(TAG,"delay: "+d+" d: "+(mTimestamps[mBufferOut]-mOldTimestamp)/1000000);
-						// We ensure that packets are sent at a constant and suitable rate no matter how the RtpSocket is used.
-						if (mCacheSize>0) Thread.sleep(d);
-					} else if ((mTimestamps[mBufferOut]-mOldTimestamp)<0) {
-						Log.e(TAG, "TS: "+mTimestamps[mBufferOut]+" OLD: "+mOldTimestamp);
-					}
-					delta += mTimestamps[mBufferOut]-mOldTimestamp;
-					if (delta>500000000 || delta<0) {
-						//Log.d(TAG,"permits: "+mBufferCommitted.availablePermits());
-						delta = 0;
-					}
+			sendPacket(index);
+		} finally {
+			releasePayload(index);
+		}
+	}
+
+	private void sendPacket(int index) throws IOException {
+		long rtpts = (mTimestamps[index]/100L)*(mClock/1000L)/10000L;
+		long now = System.nanoTime();
+		boolean skip = false;
+		ByteBuffer packet = mPackets[index];
+		ByteBuffer payload = mPayloads[index];
+		int length = mLengths[index];
+		if (payload != null) {
+			length += payload.limit()-mPayloadOffsets[index];
+			// The owner of the payload may not be able to read it anymore, a stopped MediaCodec for instance
+			if (mOwners[index] != null && !mOwners[index].isAvailable()) skip = true;
+		}
+		long number = mNumber++;
+		RetransmissionCache cache = mCache;
+		// A payload that can not be read anymore must not be copied either
+		if (cache != null && !skip) {
+			if (payload != null) payload.position(mPayloadOffsets[index]);
+			cache.put(number, mBuffers[index], mLengths[index], payload, now);
+		}
+		GopCache gop = mGopCache;
+		if (gop != null && mKeyFrames[index]) gop.reset(number);
+		int sent = 0;
+		for (RtpDestination destination : mDestinations) {
+			if (destination.mPaused) continue;
+			sent++;
+			if (destination.mReplay) {
+				destination.mReplay = false;
+				if (gop != null && gop.size() > 0) startReplay(destination, gop, rtpts);
+			}
+			if (destination.mReplayIndex >= 0) {
+				// The packet reaches it from the cache, after the ones it has not been sent yet
+				if (isReplaying(destination, gop)) continue;
+				stopReplay(destination);
+			}
+			destination.prepare(mBuffers[index], number);
+			destination.getRtcpSocket().update(length, now, rtpts);
+			if (skip) continue;
+			packet.clear();
+			packet.limit(mLengths[index]);
+			if (payload != null) payload.position(mPayloadOffsets[index]);
+			try {
+				if (!destination.write(packet, payload)) mMetrics.onDropped();
+			} catch (IOException e) {
+				// The destination is being removed or its network is gone, the others must not suffer from it
+				mMetrics.onError();
+				Log.w(TAG, "Could not send to "+destination.getAddress().getHostAddress()+": "+e.getMessage());
+			}
+		}
+		if (!skip && sent > 0) mMetrics.onSent(length);
+		if (gop != null) {
+			// While nobody plays the stream the encoder may be suspended, the cache would have gaps
+			if (skip || sent == 0) {
+				gop.invalidate();
+			} else {
+				if (payload != null) payload.position(mPayloadOffsets[index]);
+				gop.put(number, mBuffers[index], mLengths[index], payload, rtpts);
+			}
+		}
+	}
+
+	/**
+	 * Has a receiver that just joined catch up with the stream: it is sent the packets of the current 
+	 * group of pictures, then the ones that the cache gets meanwhile, before the live packets. 
+	 * The frames that were complete when it joined, right before the packet with that RTP timestamp,
+	 * are given timestamps 1 ms apart that end right before it: the player decodes them in a burst 
+	 * instead of playing them at their original pace and ending up a whole GOP late. The other 
+	 * packets keep their timestamp. See {@link #replay()}.
+	 */
+	private void startReplay(RtpDestination destination, GopCache gop, long rtpts) {
+		int count = gop.size();
+		int frames = 0;
+		for (int i=0; i<count; i++) {
+			if (gop.getTimestamp(i) != rtpts && (i == 0 || gop.getTimestamp(i) != gop.getTimestamp(i-1))) frames++;
+		}
+		destination.mReplayIndex = 0;
+		destination.mReplayCache = gop;
+		destination.mReplayGeneration = gop.getGeneration();
+		destination.mReplayEnd = count;
+		destination.mReplayFrames = frames;
+		destination.mReplayFrame = 0;
+		destination.mReplayTimestamp = rtpts;
+	}
+
+	/** Returns true if the destination can still catch up: the cache still has the packets it was not sent. */
+	private boolean isReplaying(RtpDestination destination, GopCache gop) {
+		return gop != null && gop == destination.mReplayCache && gop.getGeneration() == destination.mReplayGeneration;
+	}
+
+	/** The destination gets the live packets from now on, it can only decode the stream from the next key frame. */
+	private void stopReplay(RtpDestination destination) {
+		destination.mReplayIndex = -1;
+		destination.mReplayCache = null;
+		destination.mResumed = true;
+	}
+
+	/**
+	 * Sends the next packets of the cache to the receivers catching up with the stream. Only what the
+	 * send buffer takes is sent, at most {@link #REPLAY_BATCH} packets per receiver, and the rest on 
+	 * the next pass: a whole group of pictures at once would overflow it and lose the key frame.
+	 * @return true if receivers still have to catch up
+	 */
+	private boolean replay() {
+		GopCache gop = mGopCache;
+		boolean replaying = false;
+		for (RtpDestination destination : mDestinations) {
+			if (destination.mReplayIndex < 0) continue;
+			if (destination.mPaused || !isReplaying(destination, gop)) {
+				stopReplay(destination);
+			} else if (replay(destination, gop)) {
+				replaying = true;
+			}
+		}
+		return replaying;
+	}
+
+	/** @return false once the destination caught up, or if it could not be sent anything */
+	private boolean replay(RtpDestination destination, GopCache gop) {
+		long step = mClock/1000, now = System.nanoTime();
+		for (int n=0; n<REPLAY_BATCH; n++) {
+			int i = destination.mReplayIndex;
+			if (i >= gop.size()) {
+				destination.mReplayIndex = -1;
+				destination.mReplayCache = null;
+				Log.d(TAG, "Replayed "+i+" packets ("+destination.mReplayFrames+" frames) to "+destination.getAddress().getHostAddress());
+				return false;
+			}
+			long timestamp = gop.getTimestamp(i);
+			if (i < destination.mReplayEnd && timestamp != destination.mReplayTimestamp) {
+				timestamp = destination.mReplayTimestamp-(destination.mReplayFrames-destination.mReplayFrame)*step;
+			}
+			ByteBuffer packet = gop.get(i);
+			// The cache keeps the timestamps written by the previous replay
+			setLong(packet.array(), timestamp, 4, 8);
+			try {
+				// The send buffer is full, the packet is offered again on the next pass
+				if (!destination.offer(packet, gop.getFirstNumber()+i)) return true;
+			} catch (IOException e) {
+				mMetrics.onError();
+				Log.w(TAG, "Could not send to "+destination.getAddress().getHostAddress()+": "+e.getMessage());
+				stopReplay(destination);
+				return false;
+			}
+			destination.getRtcpSocket().update(packet.limit(), now, timestamp);
+			destination.mReplayIndex = ++i;
+			if (i < gop.size() && gop.getTimestamp(i) != gop.getTimestamp(i-1)) destination.mReplayFrame++;
+		}
+		return true;
+	}
+
+	/** 
+	 * Called when a receiver reports lost packets, the packets are sent again 
+	 * by the scheduler if they are still in the cache. 
+	 * @param pid The sequence number of a lost packet
+	 * @param blp A bitmask of the following lost packets
+	 */
+	void retransmit(RtpDestination destination, int pid, int blp) {
+		if (mCache == null || mNacks.size() >= MAX_PENDING_NACKS) return;
+		mNacks.add(new Nack(destination, pid, blp));
+		schedule();
+	}
+
+	/** Sends the packets requested with {@link #retransmit(RtpDestination, int, int)}. */
+	private void retransmit() {
+		RetransmissionCache cache = mCache;
+		Nack nack;
+		while ((nack = mNacks.poll()) != null) {
+			if (cache == null || !mDestinations.contains(nack.destination)) continue;
+			long now = System.nanoTime();
+			for (int i=-1; i<16; i++) {
+				if (i>=0 && (nack.blp & (1<<i)) == 0) continue;
+				int seq = (nack.pid+i+1) & 0xFFFF;
+				ByteBuffer packet = cache.get(nack.destination.numberOf(seq), now);
+				if (packet == null) continue;
+				nack.destination.prepare(packet.array(), seq);
+				try {
+					if (!nack.destination.write(packet, null)) mMetrics.onDropped();
+				} catch (IOException e) {
+					mMetrics.onError();
+					Log.w(TAG, "Could not send to "+nack.destination.getAddress().getHostAddress()+": "+e.getMessage());
 				}
-				mReport.update(mPackets[mBufferOut].getLength(), System.nanoTime(),(mTimestamps[mBufferOut]/100L)*(mClock/1000L)/10000L);
-				mOldTimestamp = mTimestamps[mBufferOut];
-				if (mCount++>30) mSocket.send(mPackets[mBufferOut]);
-				if (++mBufferOut>=mBufferCount) mBufferOut = 0;
-				mBufferRequested.release();
 			}
-		} catch (Exception e) {
-			e.printStackTrace();
 		}
-		mThread = null;
-		resetFifo();
+	}
+
+	private static class Nack {
+		final RtpDestination destination;
+		final int pid, blp;
+		Nack(RtpDestination destination, int pid, int blp) {
+			this.destination = destination;
+			this.pid = pid;
+			this.blp = blp;
+		}
+	}
+
+	/** Gives the payload of the slot back to its owner if needed and forgets it. */
+	private void releasePayload(int index) {
+		PayloadOwner owner = mOwners[index];
+		// Forgotten first, the slot must be clean even if the owner throws
+		mPayloads[index] = null;
+		mOwners[index] = null;
+		if (owner != null && mReleases[index] >= 0) {
+			owner.releasePayload(mReleases[index]);
+		}
+	}
+
+	/** 
+	 * Sizes SO_SNDBUF so that a quarter of a second of the stream fits in it, 
+	 * which is enough to absorb the burst of an IDR frame. 
+	 */
+	private void updateSendBufferSize() throws IOException {
+		long now = SystemClock.elapsedRealtime();
+		if (now-mSendBufferUpdate<1000) return;
+		mSendBufferUpdate = now;
+		int size = Math.max(MIN_SEND_BUFFER, Math.min(MAX_SEND_BUFFER, mAverageBitrate.average()/8/4));
+		// Only bother the kernel when the bitrate really changed
+		if (Math.abs(size-mSendBufferSize) < mSendBufferSize/4) return;
+		mSendBufferSize = size;
+		for (RtpDestination destination : mDestinations) {
+			destination.getTransport().setSendBufferSize(size);
+		}
+	}
+
+	private RtpTransport configure(RtpTransport transport) throws IOException {
+		int size = mSendBufferSize;
+		if (size>0) transport.setSendBufferSize(size);
+		return transport;
 	}
 
 	private void setLong(byte[] buffer, long n, int begin, int end) {
@@ -288,6 +937,42 @@ public class RtpSocket implements Runnable {
 		}
 	}
 
+	/** 
+	 * Notified of the RTCP feedback of the receivers, from the Thread that reads it.
+	 */
+	public interface FeedbackListener {
+
+		/** 
+		 * A receiver sent a report, the statistics of the destination have been updated.
+		 * @see RtpDestination#getFractionLost() 
+		 */
+		void onReceiverReport(RtpSocket socket, RtpDestination destination);
+
+		/** A receiver sent a PLI or a FIR, it needs a key frame to decode the stream again. */
+		void onKeyFrameRequest(RtpSocket socket, RtpDestination destination);
+
+		/** 
+		 * Every destination has been paused, or one resumed. Nobody sees the stream while
+		 * playing is false, the encoder can save power. 
+		 */
+		void onPlayingChanged(RtpSocket socket, boolean playing);
+
+	}
+
+	/** 
+	 * Owner of payloads given to {@link RtpSocket#commitBuffer(int, ByteBuffer, PayloadOwner, int)},
+	 * the output buffers of a MediaCodec for instance.
+	 */
+	public interface PayloadOwner {
+
+		/** Returns false once the payloads can not be read anymore. */
+		boolean isAvailable();
+
+		/** Called by the Thread of the {@link RtpScheduler} once the packets using the payload have been sent. */
+		void releasePayload(int id);
+
+	}
+
 	/** 
 	 * Computes an average bit rate. 
 	 **/
@@ -350,54 +1035,5 @@ public class RtpSocket implements Runnable {
 		}
 		
 	}
-	
-	/** Computes the proper rate at which packets are sent. */
-	protected static class Statistics {
-
-		public final static String TAG = "Statistics";
-		
-		private int count=500, c = 0;
-		private float m = 0, q = 0;
-		private long elapsed = 0;
-		private long start = 0;
-		private long duration = 0;
-		private long period = 6000000000L;
-		private boolean initoffset = false;
-
-		public Statistics(int count, long period) {
-			this.count = count;
-			this.period = period*1000000L; 
-		}
-		
-		public void push(long value) {
-			duration += value;
-			elapsed += value;
-			if (elapsed>period) {
-				elapsed = 0;
-				long now = System.nanoTime();
-				if (!initoffset || (now - start < 0)) {
-					start = now;
-					duration = 0;
-					initoffset = true;
-				}
-				value -= (now - start) - duration;
-				//Log.d(TAG, "sum1: "+duration/1000000+" sum2: "+(now-start)/1000000+" drift: "+((now-start)-duration)/1000000+" v: "+value/1000000);
-			}
-			if (c<40) {
-				// We ignore the first 40 measured values because they may not be accurate
-				c++;
-				m = value;
-			} else {
-				m = (m*q+value)/(q+1);
-				if (q<count) q++;
-			}
-		}
-		
-		public long average() {
-			long l = (long)m-2000000;
-			return l>0 ? l : 0;
-		}
-
-	}
 
 }
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Sends the packets of an {@link RtpDestination}.
+ */
+interface RtpTransport {
+
+	/**
+	 * Tries to send the remaining bytes of the header followed by the remaining bytes 
+	 * of the payload as one packet.
+	 * @param payload The payload of the packet or null if it is already in the header buffer
+	 * @return false if the packet could not be sent because the send buffer is full
+	 */
+	boolean write(ByteBuffer header, ByteBuffer payload) throws IOException;
+
+	/** Sets the size of the kernel send buffer in bytes. */
+	void setSendBufferSize(int size) throws IOException;
+
+	/** Sets the Time To Live of the packets, only meaningful for multicast. */
+	void setTimeToLive(int ttl) throws IOException;
+
+	int getLocalPort();
+
+	void close();
+
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.streaming.rtp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Sends packets to a unicast address with a connected non-blocking {@link DatagramChannel}.
+ * Unlike MulticastSocket.send(), writing to a connected channel needs no DatagramPacket,
+ * no lock on the packet and no per packet address lookup.
+ */
+class UdpTransport implements RtpTransport {
+
+	private final DatagramChannel mChannel;
+	private final boolean mOwner;
+	private final ByteBuffer[] mGather = new ByteBuffer[2];
+
+	/** Opens a new channel bound to any free local port. */
+	public UdpTransport(InetAddress dest, int port) throws IOException {
+		this(open(), dest, port, true);
+	}
+
+	/** 
+	 * Connects an existing channel, the one of the {@link RtpSocket} for instance.
+	 * The channel is not closed by {@link #close()}. 
+	 */
+	public UdpTransport(DatagramChannel channel, InetAddress dest, int port) throws IOException {
+		this(channel, dest, port, false);
+	}
+
+	private UdpTransport(DatagramChannel channel, InetAddress dest, int port, boolean owner) throws IOException {
+		mChannel = channel;
+		mOwner = owner;
+		if (mChannel.isConnected()) mChannel.disconnect();
+		mChannel.connect(new InetSocketAddress(dest, port));
+	}
+
+	/** Opens a non-blocking channel bound to any free local port. */
+	static DatagramChannel open() throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		channel.configureBlocking(false);
+		channel.socket().bind(null);
+		return channel;
+	}
+
+	@Override
+	public boolean write(ByteBuffer header, ByteBuffer payload) throws IOException {
+		try {
+			if (payload == null) return mChannel.write(header) > 0;
+			// A gathering write still sends a single datagram
+			mGather[0] = header;
+			mGather[1] = payload;
+			return mChannel.write(mGather) > 0;
+		} catch (PortUnreachableException e) {
+			// The receiver has not opened its port yet, the packet is lost anyway
+			return true;
+		}
+	}
+
+	@Override
+	public void setSendBufferSize(int size) throws IOException {
+		mChannel.socket().setSendBufferSize(size);
+	}
+
+	@Override
+	public void setTimeToLive(int ttl) {}
+
+	@Override
+	public int getLocalPort() {
+		return mChannel.socket().getLocalPort();
+	}
+
+	@Override
+	public void close() {
+		if (!mOwner) return;
+		try {
+			mChannel.close();
+		} catch (IOException ignore) {}
+	}
+
+}
@@ -20,24 +20,38 @@
 
 package net.majorkernelpanic.streaming.rtsp;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.net.BindException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Locale;
 import java.util.WeakHashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import net.majorkernelpanic.streaming.Session;
 import net.majorkernelpanic.streaming.SessionBuilder;
+import net.majorkernelpanic.streaming.rtp.InterleavedOutput;
+import net.majorkernelpanic.streaming.rtp.RtpDestination;
 
 import android.annotation.SuppressLint;
 import android.app.Service;
@@ -47,6 +61,7 @@ import android.content.SharedPreferences.Editor;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.os.Binder;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
@@ -63,8 +78,11 @@ import android.util.Log;
  * Implementation of a subset of the RTSP protocol (RFC 2326).
  * <p>
  * It allows remote control of an android device cameras & microphone.
- * For each connected client, a Session is instantiated.
- * The Session will start or stop streams according to what the client wants.
+ * Clients requesting the same URI share the same Session, so that a single
+ * encoder feeds all of them. The Session is started when its first client
+ * sets up a track and is stopped when its last client leaves. It stays configured
+ * for a while after that, so that clients that come back quickly do not wait for
+ * the camera and the encoders to be probed again.
  */
 @SuppressLint("Registered")
 public class RtspServer extends Service {
@@ -101,6 +119,16 @@ public class RtspServer extends Service {
      */
     public final static int MESSAGE_STREAMING_STOPPED = 0X01;
 
+    /**
+     * Seconds a client session lasts without any request or RTCP report from the client, by default.
+     */
+    public static final int DEFAULT_SESSION_TIMEOUT = 60;
+
+    /**
+     * Seconds a Session stays configured after its last client left, by default.
+     */
+    public static final int DEFAULT_WARM_TIMEOUT = 60;
+
     /**
      * Key used in the SharedPreferences to store whether the RTSP server is enabled or not.
      */
@@ -111,13 +139,73 @@ public class RtspServer extends Service {
      */
     public final static String KEY_PORT = "rtsp_port";
 
+    /**
+     * Key used in the SharedPreferences for the URI whose Session is configured when the server starts,
+     * see {@link #warmUp(String)}. Empty to configure nothing.
+     */
+    public final static String KEY_WARM_UP = "rtsp_warm_up";
+
+    /**
+     * Number of Threads handling the requests of the clients.
+     */
+    private static final int WORKERS = 4;
+
+    /**
+     * Number of connections whose requests can wait for a worker, the next ones get a 503.
+     */
+    private static final int MAX_QUEUED_CONNECTIONS = 32;
+
+    /**
+     * How long the server waits for the workers to detach the last clients when it stops, in ms.
+     */
+    private static final int WORKERS_TIMEOUT = 3000;
+
+    /**
+     * Number of requests of one connection that can wait for a worker.
+     */
+    private static final int MAX_PENDING_REQUESTS = 8;
+
+    /**
+     * Number of configured Sessions without clients kept, besides the ones of {@link #warmUp(String)}.
+     */
+    private static final int MAX_WARM_SESSIONS = 2;
+
+    /**
+     * How often the client sessions are checked for expiry, in ms.
+     */
+    private static final int REAP_INTERVAL = 1000;
+
+    private static final int INPUT_BUFFER_SIZE = 4096;
+    // Must hold the biggest interleaved frame
+    private static final int MAX_INPUT_SIZE = 128 * 1024;
+    private static final int OUTPUT_BUFFER_SIZE = 32 * 1024;
+
+    private static final Charset LATIN_1 = Charset.forName("ISO-8859-1");
+
+    // Logs the whole responses
+    private static final boolean DEBUG = false;
+
     protected SessionBuilder mSessionBuilder;
     protected SharedPreferences mSharedPreferences;
     protected boolean mEnabled = true;
     protected int mPort = DEFAULT_RTSP_PORT;
     protected WeakHashMap<Session, Object> mSessions = new WeakHashMap<Session, Object>(2);
+    protected int mSessionTimeout = DEFAULT_SESSION_TIMEOUT;
+    protected int mWarmTimeout = DEFAULT_WARM_TIMEOUT;
+    protected String mWarmUpUri = "";
+
+    /**
+     * Sessions shared by the connected clients, keyed by the query of the URI that created them.
+     */
+    private final HashMap<String, SharedSession> mSharedSessions = new HashMap<String, SharedSession>();
+
+    /**
+     * The connections of the clients that did a SETUP, keyed by the id of their RTSP session.
+     */
+    private final HashMap<String, Connection> mClientSessions = new HashMap<String, Connection>();
+    private final SecureRandom mRandom = new SecureRandom();
 
-    private RequestListener mListenerThread;
+    private volatile RequestListener mListenerThread;
     private final IBinder mBinder = new LocalBinder();
     private boolean mRestart = false;
     private final LinkedList<CallbackListener> mListeners = new LinkedList<CallbackListener>();
@@ -188,6 +276,16 @@ public class RtspServer extends Service {
         editor.commit();
     }
 
+    /**
+     * Sets how long a client session lasts without any request or RTCP report from the client.
+     * It is advertised in the Session header and applies to the sessions set up from now on.
+     *
+     * @param timeout The timeout in seconds
+     */
+    public void setSessionTimeout(int timeout) {
+        mSessionTimeout = timeout;
+    }
+
     /**
      * Starts (or restart if needed, if for example the configuration
      * of the server has been modified) the RTSP server.
@@ -197,6 +295,8 @@ public class RtspServer extends Service {
         if (mEnabled && mListenerThread == null) {
             try {
                 mListenerThread = new RequestListener();
+                // The first client does not have to wait for the camera and the encoders
+                if (mWarmUpUri != null && mWarmUpUri.length() > 0) warmUp(mWarmUpUri);
             } catch (Exception e) {
                 mListenerThread = null;
             }
@@ -212,6 +312,13 @@ public class RtspServer extends Service {
         if (mListenerThread != null) {
             try {
                 mListenerThread.kill();
+                // The Sessions kept ready are released too
+                for (SharedSession shared : expireWarmSessions(true)) {
+                    synchronized (shared) {
+                        shared.session.syncStop();
+                        shared.session.release();
+                    }
+                }
                 for (Session session : mSessions.keySet()) {
                     if (session != null) {
                         if (session.isStreaming()) session.stop();
@@ -266,6 +373,7 @@ public class RtspServer extends Service {
         mSharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
         mPort = Integer.parseInt(mSharedPreferences.getString(KEY_PORT, String.valueOf(mPort)));
         mEnabled = mSharedPreferences.getBoolean(KEY_ENABLED, mEnabled);
+        mWarmUpUri = mSharedPreferences.getString(KEY_WARM_UP, mWarmUpUri);
 
         // If the configuration is modified, the server will adjust
         mSharedPreferences.registerOnSharedPreferenceChangeListener(mOnSharedPreferenceChangeListener);
@@ -291,6 +399,9 @@ public class RtspServer extends Service {
             } else if (key.equals(KEY_ENABLED)) {
                 mEnabled = sharedPreferences.getBoolean(KEY_ENABLED, mEnabled);
                 start();
+            } else if (key.equals(KEY_WARM_UP)) {
+                mWarmUpUri = sharedPreferences.getString(KEY_WARM_UP, mWarmUpUri);
+                if (mListenerThread != null && mWarmUpUri.length() > 0) warmUp(mWarmUpUri);
             }
         }
     };
@@ -346,40 +457,371 @@ public class RtspServer extends Service {
         return session;
     }
 
-    class RequestListener extends Thread implements Runnable {
+    /**
+     * Returns the Session that streams what the URI describes, creating it with
+     * {@link #handleRequest(String, Socket)} if no other client uses it yet and 
+     * none is kept ready for that URI.
+     */
+    protected SharedSession acquireSession(String uri, Socket client) throws IllegalStateException, IOException {
+        String key = sessionKey(uri);
+        synchronized (mSharedSessions) {
+            SharedSession shared = mSharedSessions.get(key);
+            if (shared == null) {
+                Session session = handleRequest(uri, client);
+                shared = new SharedSession(key, session,
+                        !session.getDestination().equals(client.getInetAddress().getHostAddress()));
+                mSharedSessions.put(key, shared);
+                mSessions.put(session, null);
+            } else {
+                shared.address(client);
+            }
+            shared.users++;
+            shared.idleSince = 0;
+            return shared;
+        }
+    }
+
+    /**
+     * Stops the Session once its last client is gone. It stays configured for a while,
+     * see {@link #setWarmTimeout(int)}, and the next DESCRIBE of the same URI is answered 
+     * from its cached description.
+     */
+    protected void releaseSession(SharedSession shared) {
+        synchronized (mSharedSessions) {
+            if (--shared.users > 0) return;
+            shared.idleSince = SystemClock.elapsedRealtime();
+        }
+        // Nobody can describe the Session, and so add a destination to it, while it stops
+        synchronized (shared) {
+            if (shared.users == 0) shared.session.syncStop();
+        }
+        RequestListener listener = mListenerThread;
+        if (listener != null) listener.releaseAll(expireWarmSessions(false));
+    }
+
+    /**
+     * Configures in the background the Session that the URI describes, so that the first
+     * DESCRIBE of that URI is answered right away, after boot for instance. The Session is 
+     * built by {@link UriParser} and stays configured until the server stops.
+     */
+    public void warmUp(final String uri) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                SharedSession shared;
+                String key = sessionKey(uri);
+                try {
+                    synchronized (mSharedSessions) {
+                        shared = mSharedSessions.get(key);
+                        if (shared == null) {
+                            Session session = UriParser.parse(uri);
+                            shared = new SharedSession(key, session, session.getDestination() != null);
+                            shared.addressed = false;
+                            shared.idleSince = SystemClock.elapsedRealtime();
+                            mSharedSessions.put(key, shared);
+                            mSessions.put(session, null);
+                        }
+                        shared.pinned = true;
+                    }
+                    shared.configure();
+                    Log.d(TAG, "Session ready for " + uri);
+                } catch (Exception e) {
+                    Log.e(TAG, "Could not prepare " + uri + ": " + e.getMessage());
+                }
+            }
+        }, "RtspWarmUp").start();
+    }
+
+    /**
+     * Sets how long a Session stays configured after its last client left.
+     *
+     * @param timeout The timeout in seconds
+     */
+    public void setWarmTimeout(int timeout) {
+        mWarmTimeout = timeout;
+    }
+
+    /**
+     * Removes the Sessions without clients that expired, the oldest ones if more than 
+     * {@link #MAX_WARM_SESSIONS} are kept, or all of them. They still have to be released.
+     */
+    private ArrayList<SharedSession> expireWarmSessions(boolean all) {
+        long now = SystemClock.elapsedRealtime();
+        ArrayList<SharedSession> expired = new ArrayList<SharedSession>();
+        synchronized (mSharedSessions) {
+            SharedSession oldest = null;
+            int warm = 0;
+            Iterator<SharedSession> it = mSharedSessions.values().iterator();
+            while (it.hasNext()) {
+                SharedSession shared = it.next();
+                if (shared.users > 0 || shared.pinned && !all) continue;
+                if (all || now - shared.idleSince > mWarmTimeout * 1000L) {
+                    it.remove();
+                    expired.add(shared);
+                    continue;
+                }
+                warm++;
+                if (oldest == null || shared.idleSince < oldest.idleSince) oldest = shared;
+            }
+            if (warm > MAX_WARM_SESSIONS) {
+                mSharedSessions.remove(oldest.key);
+                expired.add(oldest);
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * Makes URIs that only differ by the order or the case of their parameters share a Session.
+     */
+    private static String sessionKey(String uri) {
+        String query = URI.create(uri).getRawQuery();
+        if (query == null) return "";
+        String[] params = query.toLowerCase(Locale.US).split("&");
+        Arrays.sort(params);
+        StringBuilder key = new StringBuilder(query.length());
+        for (String param : params) {
+            if (param.length() == 0) continue;
+            if (key.length() > 0) key.append('&');
+            key.append(param);
+        }
+        return key.toString();
+    }
+
+    /**
+     * Gives a new random session id to the connection.
+     */
+    private String registerSession(Connection connection) {
+        synchronized (mClientSessions) {
+            String id;
+            do {
+                id = String.format(Locale.US, "%016x", mRandom.nextLong());
+            } while (mClientSessions.containsKey(id));
+            mClientSessions.put(id, connection);
+            return id;
+        }
+    }
+
+    private void unregisterSession(String id) {
+        synchronized (mClientSessions) {
+            mClientSessions.remove(id);
+        }
+    }
+
+    /**
+     * Closes the connections whose session expired, releasing their resources. Clients
+     * that vanished without closing TCP, when roaming for instance, no longer keep
+     * an encoder running.
+     */
+    private void reapSessions() {
+        long now = SystemClock.elapsedRealtime();
+        ArrayList<Connection> expired = null;
+        synchronized (mClientSessions) {
+            for (Connection connection : mClientSessions.values()) {
+                if (connection.isExpired(now)) {
+                    if (expired == null) expired = new ArrayList<Connection>();
+                    expired.add(connection);
+                }
+            }
+        }
+        if (expired == null) return;
+        for (Connection connection : expired) {
+            Log.i(TAG, "Session " + connection.mSessionId + " timed out");
+            connection.close();
+        }
+    }
+
+    /**
+     * A Session and the number of clients using it.
+     * Locks are always taken in that order: mSharedSessions, then the SharedSession, then the Session.
+     */
+    protected static class SharedSession {
+        public final String key;
+        public final Session session;
+        /**
+         * True if the URI chose where packets are sent (unicast or multicast parameter),
+         * the address of each client is used otherwise.
+         */
+        public final boolean fixedDestination;
+        // Only changed while holding mSharedSessions
+        private volatile int users = 0;
+        // When the last client left
+        private long idleSince = 0;
+        // Kept until the server stops, see warmUp()
+        private boolean pinned = false;
+        // False until a client gave the addresses of the description, see warmUp()
+        private boolean addressed = true;
+        private boolean configured = false;
+        private String description;
+
+        SharedSession(String key, Session session, boolean fixedDestination) {
+            this.key = key;
+            this.session = session;
+            this.fixedDestination = fixedDestination;
+        }
 
-        private final ServerSocket mServer;
+        /** Configures the streams, the first time only. */
+        synchronized void configure() throws IOException {
+            if (configured) return;
+            session.syncConfigure();
+            configured = true;
+            description = null;
+        }
+
+        /** Returns the description of the Session, configuring it the first time. */
+        synchronized String describe() throws IOException {
+            configure();
+            if (description == null) description = session.getSessionDescription();
+            return description;
+        }
+
+        /** Gives the addresses of the first client to a Session prepared without one. */
+        synchronized void address(Socket client) {
+            if (addressed) return;
+            addressed = true;
+            session.setOrigin(client.getLocalAddress().getHostAddress());
+            if (!fixedDestination) session.setDestination(client.getInetAddress().getHostAddress());
+            description = null;
+        }
+    }
+
+    /**
+     * Accepts the clients and does all the I/O of their connections on a single Thread,
+     * with non-blocking channels. The requests are handled by a small pool of workers, so
+     * that a slow one, a DESCRIBE that configures the encoders for instance, never stalls
+     * the other clients. The requests of a connection are handled one at a time, in order.
+     */
+    class RequestListener extends Thread {
+
+        private final Selector mSelector;
+        private final ServerSocketChannel mServer;
+        private final ThreadPoolExecutor mWorkers;
+        // Connections with responses or interleaved frames waiting to be written
+        private final ConcurrentLinkedQueue<Connection> mFlushes = new ConcurrentLinkedQueue<Connection>();
+        private volatile boolean mRunning = true;
 
         public RequestListener() throws IOException {
+            mSelector = Selector.open();
+            mServer = ServerSocketChannel.open();
             try {
-                mServer = new ServerSocket(mPort);
-                start();
-            } catch (BindException e) {
-                Log.e(TAG, "Port already in use !");
-                postError(e, ERROR_BIND_FAILED);
+                mServer.socket().bind(new InetSocketAddress(mPort));
+                mServer.configureBlocking(false);
+                mServer.register(mSelector, SelectionKey.OP_ACCEPT);
+            } catch (IOException e) {
+                mServer.close();
+                mSelector.close();
+                if (e instanceof BindException) {
+                    Log.e(TAG, "Port already in use !");
+                    postError(e, ERROR_BIND_FAILED);
+                }
                 throw e;
             }
+            mWorkers = new ThreadPoolExecutor(WORKERS, WORKERS, 30, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(MAX_QUEUED_CONNECTIONS));
+            mWorkers.allowCoreThreadTimeOut(true);
+            start();
         }
 
         public void run() {
-            Log.i(TAG, "RTSP server listening on port " + mServer.getLocalPort());
-            while (!Thread.interrupted()) {
-                try {
-                    new WorkerThread(mServer.accept()).start();
-                } catch (SocketException e) {
-                    break;
-                } catch (IOException e) {
-                    Log.e(TAG, e.getMessage());
+            Log.i(TAG, "RTSP server listening on port " + mServer.socket().getLocalPort());
+            long reap = SystemClock.elapsedRealtime() + REAP_INTERVAL;
+            try {
+                while (mRunning) {
+                    mSelector.select(REAP_INTERVAL);
+                    if (SystemClock.elapsedRealtime() >= reap) {
+                        reapSessions();
+                        releaseAll(expireWarmSessions(false));
+                        reap = SystemClock.elapsedRealtime() + REAP_INTERVAL;
+                    }
+                    Connection connection;
+                    while ((connection = mFlushes.poll()) != null) {
+                        connection.flush();
+                    }
+                    Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (!key.isValid()) continue;
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        connection = (Connection) key.attachment();
+                        if (key.isReadable()) connection.read();
+                        if (key.isValid() && key.isWritable()) connection.flush();
+                    }
                 }
+            } catch (IOException e) {
+                Log.e(TAG, e.getMessage() != null ? e.getMessage() : "Selector failed");
+            }
+
+            // Every client is disconnected, the workers finish what was already queued
+            for (SelectionKey key : new ArrayList<SelectionKey>(mSelector.keys())) {
+                if (key.attachment() instanceof Connection) ((Connection) key.attachment()).close();
+            }
+            try {
+                mServer.close();
+                mSelector.close();
+            } catch (IOException ignore) {
+            }
+            mWorkers.shutdown();
+            try {
+                mWorkers.awaitTermination(WORKERS_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ignore) {
             }
             Log.i(TAG, "RTSP server stopped !");
         }
 
-        public void kill() {
+        private void accept() {
             try {
-                mServer.close();
+                SocketChannel channel = mServer.accept();
+                if (channel == null) return;
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                Connection connection = new Connection(this, channel);
+                connection.mKey = channel.register(mSelector, SelectionKey.OP_READ, connection);
+                Log.i(TAG, "Connection from " + channel.socket().getInetAddress().getHostAddress());
             } catch (IOException e) {
+                Log.e(TAG, e.getMessage() != null ? e.getMessage() : "Accept failed");
             }
+        }
+
+        void execute(Runnable task) throws RejectedExecutionException {
+            mWorkers.execute(task);
+        }
+
+        /**
+         * Releases Sessions that were kept ready, on the workers since it may take a while.
+         */
+        void releaseAll(final List<SharedSession> sessions) {
+            if (sessions.isEmpty()) return;
+            Runnable release = new Runnable() {
+                @Override
+                public void run() {
+                    for (SharedSession shared : sessions) {
+                        synchronized (shared) {
+                            shared.session.syncStop();
+                            shared.session.release();
+                        }
+                    }
+                }
+            };
+            try {
+                mWorkers.execute(release);
+            } catch (RejectedExecutionException e) {
+                release.run();
+            }
+        }
+
+        /** Called from any Thread, the connection will be flushed by the Thread of the selector. */
+        void requestFlush(Connection connection) {
+            mFlushes.add(connection);
+            mSelector.wakeup();
+        }
+
+        public void kill() {
+            mRunning = false;
+            mSelector.wakeup();
             try {
                 this.join();
             } catch (InterruptedException ignore) {
@@ -388,103 +830,397 @@ public class RtspServer extends Service {
 
     }
 
-    // One thread per client
-    class WorkerThread extends Thread implements Runnable {
+    /**
+     * One client. Its channel is only read and written by the Thread of the {@link RequestListener},
+     * its requests are handled by the workers, which never touch the channel.
+     */
+    class Connection implements Runnable, InterleavedOutput.Listener {
+
+        // Queued after the last request of a connection that was closed
+        private final Request DISCONNECT = new Request();
+
+        private final RequestListener mListener;
+        private final SocketChannel mChannel;
         private final Socket mClient;
-        private final OutputStream mOutput;
-        private final BufferedReader mInput;
+        private SelectionKey mKey;
+
+        // Only used by the Thread of the selector
+        private ByteBuffer mInput = ByteBuffer.allocate(INPUT_BUFFER_SIZE);
+        private final ByteBuffer mOutput = ByteBuffer.allocate(OUTPUT_BUFFER_SIZE);
+        private boolean mClosed = false;
+
+        private final ConcurrentLinkedQueue<ByteBuffer> mResponses = new ConcurrentLinkedQueue<ByteBuffer>();
+        private final AtomicBoolean mFlushRequested = new AtomicBoolean(false);
 
-        // Each client has an associated session
+        // Requests waiting for a worker, mBusy is set while one handles them
+        private final LinkedList<Request> mPending = new LinkedList<Request>();
+        private boolean mBusy = false;
+        // Parsed requests are reused once handled
+        private final ArrayBlockingQueue<Request> mFreeRequests = new ArrayBlockingQueue<Request>(MAX_PENDING_REQUESTS + 1);
+
+        // Each client has an associated session, possibly shared with other clients
+        private SharedSession mShared;
         private Session mSession;
 
-        public WorkerThread(final Socket client) throws IOException {
-            mInput = new BufferedReader(new InputStreamReader(client.getInputStream()));
-            mOutput = client.getOutputStream();
-            mClient = client;
-            mSession = new Session();
+        // Where packets are sent for this client, and its receivers in each track
+        private String mDestination;
+        private final RtpDestination[] mTracks = new RtpDestination[2];
+
+        // Created when the client asks for RTP/AVP/TCP
+        private volatile InterleavedOutput mInterleaved;
+
+        // The RTSP session, created by the first SETUP
+        private volatile String mSessionId;
+        private int mTimeout;
+        private volatile long mLastActivity;
+
+        public Connection(RequestListener listener, SocketChannel channel) {
+            mListener = listener;
+            mChannel = channel;
+            mClient = channel.socket();
         }
 
-        public void run() {
-            Request request;
-            Response response;
+        /**
+         * Reads what the client sent and queues the complete requests.
+         */
+        void read() {
+            try {
+                if (!mInput.hasRemaining()) {
+                    if (mInput.capacity() >= MAX_INPUT_SIZE) {
+                        Log.e(TAG, "Request too long");
+                        close();
+                        return;
+                    }
+                    ByteBuffer input = ByteBuffer.allocate(mInput.capacity() * 2);
+                    mInput.flip();
+                    input.put(mInput);
+                    mInput = input;
+                }
+                if (mChannel.read(mInput) < 0) {
+                    close();
+                    return;
+                }
+            } catch (IOException e) {
+                Log.d(TAG, "The client has left: " + e.getMessage());
+                close();
+                return;
+            }
+            parse();
+        }
+
+        /**
+         * Consumes the interleaved frames and the complete requests in the input buffer.
+         */
+        private void parse() {
+            byte[] data = mInput.array();
+            mInput.flip();
+            while (mInput.hasRemaining()) {
+                int start = mInput.position(), limit = mInput.limit();
+
+                // RTCP packets sent by the client over RTP/AVP/TCP, NACKs for instance
+                if (data[start] == '$') {
+                    if (limit - start < 4) break;
+                    int length = (data[start + 2] & 0xFF) << 8 | data[start + 3] & 0xFF;
+                    if (limit - start < 4 + length) break;
+                    onInterleavedFrame(data[start + 1] & 0xFF, ByteBuffer.wrap(data, start + 4, length));
+                    mInput.position(start + 4 + length);
+                    continue;
+                }
 
-            Log.i(TAG, "Connection from " + mClient.getInetAddress().getHostAddress());
+                // Empty lines between requests
+                if (data[start] == '\r' || data[start] == '\n') {
+                    mInput.position(start + 1);
+                    continue;
+                }
 
-            while (!Thread.interrupted()) {
-                request = null;
-                response = null;
-                // Parse the request
-                try {
-                    request = Request.parseRequest(mInput);
-                } catch (SocketException e) {
-                    Log.e(TAG, "the client has left", e);
-                    // Client has left
+                int end = Request.indexOfEnd(data, start, limit);
+                if (end < 0) break;
+                Request request = obtainRequest();
+                // We don't understand the request if it is malformed :/
+                request.parse(data, start, end);
+                int next = end + request.getContentLength();
+                if (next > limit) {
+                    recycle(request);
                     break;
-                } catch (Exception e) {
-                    // We don't understand the request :/
-                    response = new Response();
-                    response.status = Response.STATUS_BAD_REQUEST;
                 }
+                mInput.position(next);
+                enqueue(request);
+            }
+            mInput.compact();
+        }
 
-                // Do something accordingly like starting the streams, sending a session description
-                if (request != null) {
-                    try {
-                        response = processRequest(request);
-                    } catch (Exception e) {
-                        // This alerts the main thread that something has gone wrong in this thread
-                        postError(e, ERROR_START_FAILED);
-                        Log.e(TAG, e.getMessage() != null ? e.getMessage() : "An error occurred");
-                        e.printStackTrace();
-                        response = new Response(request);
-                    }
+        private Request obtainRequest() {
+            Request request = mFreeRequests.poll();
+            return request != null ? request : new Request();
+        }
+
+        private void recycle(Request request) {
+            if (request != DISCONNECT) mFreeRequests.offer(request);
+        }
+
+        /**
+         * The requests of a connection are handled in order, by one worker at a time.
+         */
+        private void enqueue(Request request) {
+            synchronized (mPending) {
+                if (mPending.size() >= MAX_PENDING_REQUESTS && request != DISCONNECT) {
+                    reject(request);
+                    recycle(request);
+                    return;
+                }
+                mPending.add(request);
+                if (mBusy) return;
+                mBusy = true;
+            }
+            try {
+                mListener.execute(this);
+            } catch (RejectedExecutionException e) {
+                // Every worker is busy, or the server is stopping
+                LinkedList<Request> pending;
+                synchronized (mPending) {
+                    pending = new LinkedList<Request>(mPending);
+                    mPending.clear();
+                    mBusy = false;
+                }
+                for (Request r : pending) {
+                    if (r == DISCONNECT) disconnect();
+                    else reject(r);
+                    recycle(r);
                 }
+            }
+        }
 
-                // We always send a response
-                // The client will receive an "INTERNAL SERVER ERROR" if an exception has been thrown at some point
-                try {
-                    if (response == null) {
-                        Log.e(TAG, "the response are null");
-                        break;
+        private void reject(Request request) {
+            Log.e(TAG, "Too many requests, " + request.method + " rejected");
+            Response response = new Response(request);
+            response.status = Response.STATUS_SERVICE_UNAVAILABLE;
+            send(response);
+        }
+
+        /**
+         * Handles the requests queued, on a Thread of the workers.
+         */
+        @Override
+        public void run() {
+            while (true) {
+                Request request;
+                synchronized (mPending) {
+                    request = mPending.poll();
+                    if (request == null) {
+                        mBusy = false;
+                        return;
                     }
-                    response.send(mOutput);
-                } catch (IOException e) {
-                    Log.e(TAG, "Response was not sent properly");
-                    break;
                 }
+                if (request == DISCONNECT) {
+                    disconnect();
+                } else {
+                    send(handle(request));
+                }
+                recycle(request);
+            }
+        }
 
+        private Response handle(Request request) {
+            if (request.method == null) {
+                Response response = new Response(request);
+                response.status = Response.STATUS_BAD_REQUEST;
+                return response;
             }
 
-            // Streaming stops when client disconnects
-            boolean streaming = isStreaming();
-            mSession.syncStop();
-            if (streaming && !isStreaming()) {
-                postMessage(MESSAGE_STREAMING_STOPPED);
+            // It's not an error, it's just easier to follow what's happening in logcat with the request in red
+            Log.e(TAG, request.toString());
+
+            // Do something accordingly like starting the streams, sending a session description
+            try {
+                return processRequest(request);
+            } catch (Exception e) {
+                // This alerts the main thread that something has gone wrong in this thread
+                postError(e, ERROR_START_FAILED);
+                Log.e(TAG, e.getMessage() != null ? e.getMessage() : "An error occurred");
+                e.printStackTrace();
+                // The client will receive an "INTERNAL SERVER ERROR"
+                return new Response(request);
             }
-            mSession.release();
+        }
+
+        /**
+         * Queues the response, it is written by the Thread of the selector.
+         */
+        private void send(Response response) {
+            mResponses.add(response.encode());
+            requestFlush();
+        }
 
+        @Override
+        public void onFramesAvailable(InterleavedOutput output) {
+            requestFlush();
+        }
+
+        private void requestFlush() {
+            if (mFlushRequested.compareAndSet(false, true)) mListener.requestFlush(this);
+        }
+
+        /**
+         * Writes the responses and then the interleaved frames waiting, as long as the socket
+         * accepts them. Frames are never split, so responses never end up in the middle of one.
+         */
+        void flush() {
+            mFlushRequested.set(false);
+            if (mClosed) return;
+            try {
+                while (true) {
+                    ByteBuffer response;
+                    while ((response = mResponses.peek()) != null && response.remaining() <= mOutput.remaining()) {
+                        mOutput.put(response);
+                        Response.recycle(mResponses.poll());
+                    }
+                    InterleavedOutput interleaved = mInterleaved;
+                    boolean more = response != null;
+                    if (!more && interleaved != null) more = interleaved.drainTo(mOutput);
+                    if (mOutput.position() == 0 && response != null) {
+                        // Bigger than the whole buffer
+                        mChannel.write(response);
+                        if (response.hasRemaining()) break;
+                        Response.recycle(mResponses.poll());
+                        continue;
+                    }
+                    if (mOutput.position() == 0) {
+                        mKey.interestOps(SelectionKey.OP_READ);
+                        return;
+                    }
+
+                    mOutput.flip();
+                    mChannel.write(mOutput);
+                    boolean written = !mOutput.hasRemaining();
+                    mOutput.compact();
+                    if (!written) break;
+                    if (!more) {
+                        mKey.interestOps(SelectionKey.OP_READ);
+                        return;
+                    }
+                }
+                // The socket is full, we will be told when it is writable again
+                mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            } catch (IOException e) {
+                Log.d(TAG, "The client has left: " + e.getMessage());
+                close();
+            }
+        }
+
+        /**
+         * Closes the channel, the client is detached from its session by a worker
+         * once the requests already queued are handled.
+         */
+        void close() {
+            if (mClosed) return;
+            mClosed = true;
+            mKey.cancel();
             try {
-                mClient.close();
+                mChannel.close();
             } catch (IOException e) {
                 Log.d(TAG, "Exception happened while we close the client", e);
             }
+            mResponses.clear();
+            enqueue(DISCONNECT);
+        }
 
+        private void disconnect() {
+            release();
             Log.i(TAG, "Client disconnected");
         }
 
+        /**
+         * Ends the session of the client, on TEARDOWN, expiry or disconnection.
+         */
+        private void release() {
+            // Streaming stops when the last client of the session disconnects
+            boolean streaming = isStreaming();
+            detach();
+            if (streaming && !isStreaming()) {
+                postMessage(MESSAGE_STREAMING_STOPPED);
+            }
+            if (mInterleaved != null) {
+                mInterleaved.close();
+                mInterleaved = null;
+            }
+        }
+
+        /**
+         * RTCP packets sent by the client over RTP/AVP/TCP, NACKs for instance.
+         */
+        private void onInterleavedFrame(int channel, ByteBuffer data) {
+            for (RtpDestination track : mTracks) {
+                if (track != null && track.isInterleaved() && track.getRtcpPort() == channel) {
+                    track.onRtcp(data.duplicate());
+                }
+            }
+        }
+
+        /**
+         * Returns true if the session timed out: neither a request nor an RTCP report came from the client.
+         * Called by the Thread of the selector.
+         */
+        boolean isExpired(long now) {
+            if (mSessionId == null || mClosed) return false;
+            long last = mLastActivity;
+            for (RtpDestination track : mTracks) {
+                if (track != null) last = Math.max(last, track.getReportTime());
+            }
+            return now - last > mTimeout * 1000L;
+        }
+
+        private String sessionHeader() {
+            return "Session: " + mSessionId + "\r\n";
+        }
+
+        /**
+         * Removes the receivers of this client from its session and releases the session.
+         */
+        private void detach() {
+            if (mSessionId != null) {
+                unregisterSession(mSessionId);
+                mSessionId = null;
+            }
+            if (mShared == null) return;
+            for (int id = 0; id < mTracks.length; id++) {
+                if (mTracks[id] != null) {
+                    mSession.removeDestination(id, mTracks[id]);
+                    mTracks[id] = null;
+                }
+            }
+            releaseSession(mShared);
+            mShared = null;
+            mSession = null;
+        }
+
         public Response processRequest(Request request) throws IllegalStateException, IOException {
             Response response = new Response(request);
 
+            // Any request of the client keeps its session alive, a request for another session is refused
+            String id = request.getHeader("Session");
+            if (id != null) {
+                int end = id.indexOf(';');
+                if (end >= 0) id = id.substring(0, end).trim();
+                if (!id.equals(mSessionId)) {
+                    response.status = Response.STATUS_SESSION_NOT_FOUND;
+                    return response;
+                }
+            }
+            mLastActivity = SystemClock.elapsedRealtime();
+
             /* ********************************************************************************** */
             /* ********************************* Method DESCRIBE ******************************** */
             /* ********************************************************************************** */
             if (request.method.equalsIgnoreCase("DESCRIBE")) {
 
-                // Parse the requested URI and configure the session
-                mSession = handleRequest(request.uri, mClient);
-                mSessions.put(mSession, null);
-                mSession.syncConfigure();
+                // Parse the requested URI and configure the session, unless another client already did it or it is kept ready
+                detach();
+                mShared = acquireSession(request.getUri(), mClient);
+                mSession = mShared.session;
+                mDestination = mShared.fixedDestination ? mSession.getDestination() : mClient.getInetAddress().getHostAddress();
 
-                String requestContent = mSession.getSessionDescription();
+                // Only the first DESCRIBE of a Session opens the camera and probes the encoders
+                String requestContent = mShared.describe();
                 String requestAttributes =
                         "Content-Base: " + mClient.getLocalAddress().getHostAddress() + ":" + mClient.getLocalPort() + "/\r\n" +
                                 "Content-Type: application/sdp\r\n";
@@ -501,7 +1237,17 @@ public class RtspServer extends Service {
             /* ********************************************************************************** */
             else if (request.method.equalsIgnoreCase("OPTIONS")) {
                 response.status = Response.STATUS_OK;
-                response.attributes = "Public: DESCRIBE,SETUP,TEARDOWN,PLAY,PAUSE\r\n";
+                response.attributes = "Public: DESCRIBE,SETUP,TEARDOWN,PLAY,PAUSE,GET_PARAMETER\r\n";
+                if (mSessionId != null) response.attributes += sessionHeader();
+                response.status = Response.STATUS_OK;
+            }
+
+            /* ********************************************************************************** */
+            /* ****************************** Method GET_PARAMETER ****************************** */
+            /* ********************************************************************************** */
+            else if (request.method.equalsIgnoreCase("GET_PARAMETER")) {
+                // Used as a keepalive, no parameter is supported
+                if (mSessionId != null) response.attributes = sessionHeader();
                 response.status = Response.STATUS_OK;
             }
 
@@ -509,60 +1255,94 @@ public class RtspServer extends Service {
             /* ********************************** Method SETUP ********************************** */
             /* ********************************************************************************** */
             else if (request.method.equalsIgnoreCase("SETUP")) {
-                Pattern p;
-                Matcher m;
                 int p2, p1, ssrc, trackId, src[];
+                int[] range = new int[2];
                 String destination;
 
-                p = Pattern.compile("trackID=(\\w+)", Pattern.CASE_INSENSITIVE);
-                m = p.matcher(request.uri);
+                if (mSession == null) {
+                    response.status = Response.STATUS_NOT_FOUND;
+                    return response;
+                }
+
+                trackId = parseNumber(request.getUri(), "trackID=");
 
-                if (!m.find()) {
+                if (trackId < 0) {
                     response.status = Response.STATUS_BAD_REQUEST;
                     return response;
                 }
 
-                trackId = Integer.parseInt(m.group(1));
-
-                if (!mSession.trackExists(trackId)) {
+                if (trackId < 0 || trackId >= mTracks.length || !mSession.trackExists(trackId)) {
                     response.status = Response.STATUS_NOT_FOUND;
                     return response;
                 }
 
-                p = Pattern.compile("client_port=(\\d+)-(\\d+)", Pattern.CASE_INSENSITIVE);
-                m = p.matcher(request.headers.get("transport"));
+                String transport = request.getHeader("Transport");
+                if (transport == null) transport = "";
 
-                if (!m.find()) {
-                    int[] ports = mSession.getTrack(trackId).getDestinationPorts();
-                    p1 = ports[0];
-                    p2 = ports[1];
-                } else {
-                    p1 = Integer.parseInt(m.group(1));
-                    p2 = Integer.parseInt(m.group(2));
+                if (mSessionId == null) {
+                    mSessionId = registerSession(this);
+                    mTimeout = mSessionTimeout;
+                }
+
+                boolean streaming = isStreaming();
+                if (mTracks[trackId] != null) {
+                    mSession.removeDestination(trackId, mTracks[trackId]);
+                    mTracks[trackId] = null;
                 }
 
-                ssrc = mSession.getTrack(trackId).getSSRC();
-                src = mSession.getTrack(trackId).getLocalPorts();
-                destination = mSession.getDestination();
+                if (transport.toUpperCase(Locale.US).contains("RTP/AVP/TCP")) {
+                    // RTP and RTCP go through the RTSP connection (RFC 2326 section 10.12)
+                    if (!parseRange(transport, "interleaved=", range)) {
+                        p1 = 2 * trackId;
+                        p2 = 2 * trackId + 1;
+                    } else {
+                        p1 = range[0];
+                        p2 = range[1];
+                    }
 
-                mSession.getTrack(trackId).setDestinationPorts(p1, p2);
+                    if (mInterleaved == null) {
+                        mInterleaved = new InterleavedOutput(mClient.getInetAddress(), InterleavedOutput.DEFAULT_CAPACITY, this);
+                    }
+                    mTracks[trackId] = mSession.addDestination(trackId, mInterleaved, p1, p2);
+                    ssrc = mTracks[trackId].getSSRC();
+
+                    response.attributes = "Transport: RTP/AVP/TCP;unicast" +
+                            ";interleaved=" + p1 + "-" + p2 +
+                            ";ssrc=" + Integer.toHexString(ssrc) +
+                            ";mode=play\r\n" +
+                            "Session: " + mSessionId + ";timeout=" + mTimeout + "\r\n" +
+                            "Cache-Control: no-cache\r\n";
+                } else {
+                    if (!parseRange(transport, "client_port=", range)) {
+                        int[] ports = mSession.getTrack(trackId).getDestinationPorts();
+                        p1 = ports[0];
+                        p2 = ports[1];
+                    } else {
+                        p1 = range[0];
+                        p2 = range[1];
+                    }
+
+                    destination = mDestination;
+
+                    mTracks[trackId] = mSession.addDestination(trackId, InetAddress.getByName(destination), p1, p2);
+
+                    ssrc = mTracks[trackId].getSSRC();
+                    src = mTracks[trackId].getLocalPorts();
+
+                    response.attributes = "Transport: RTP/AVP/UDP;" + (InetAddress.getByName(destination).isMulticastAddress() ? "multicast" : "unicast") +
+                            ";destination=" + destination +
+                            ";client_port=" + p1 + "-" + p2 +
+                            ";server_port=" + src[0] + "-" + src[1] +
+                            ";ssrc=" + Integer.toHexString(ssrc) +
+                            ";mode=play\r\n" +
+                            "Session: " + mSessionId + ";timeout=" + mTimeout + "\r\n" +
+                            "Cache-Control: no-cache\r\n";
+                }
 
-                boolean streaming = isStreaming();
-                mSession.syncStart(trackId);
                 if (!streaming && isStreaming()) {
                     postMessage(MESSAGE_STREAMING_STARTED);
                 }
 
-                response.attributes = "Transport: RTP/AVP/UDP;" + (InetAddress.getByName(destination).isMulticastAddress() ? "multicast" : "unicast") +
-                        ";destination=" + mSession.getDestination() +
-                        ";client_port=" + p1 + "-" + p2 +
-                        ";server_port=" + src[0] + "-" + src[1] +
-                        ";ssrc=" + Integer.toHexString(ssrc) +
-                        ";mode=play\r\n" +
-                        "Session: " + "1185d20035702ca" + "\r\n" +
-                        "Cache-Control: no-cache\r\n";
-                response.status = Response.STATUS_OK;
-
                 // If no exception has been thrown, we reply with OK
                 response.status = Response.STATUS_OK;
             }
@@ -571,15 +1351,27 @@ public class RtspServer extends Service {
             /* ********************************** Method PLAY *********************************** */
             /* ********************************************************************************** */
             else if (request.method.equalsIgnoreCase("PLAY")) {
+                if (mSessionId == null) {
+                    response.status = Response.STATUS_SESSION_NOT_FOUND;
+                    return response;
+                }
                 String requestAttributes = "RTP-Info: ";
                 if (mSession.trackExists(0))
                     requestAttributes += "url=rtsp://" + mClient.getLocalAddress().getHostAddress() + ":" + mClient.getLocalPort() + "/trackID=" + 0 + ";seq=0,";
                 if (mSession.trackExists(1))
                     requestAttributes += "url=rtsp://" + mClient.getLocalAddress().getHostAddress() + ":" + mClient.getLocalPort() + "/trackID=" + 1 + ";seq=0,";
-                requestAttributes = requestAttributes.substring(0, requestAttributes.length() - 1) + "\r\nSession: 1185d20035702ca\r\n";
+                requestAttributes = requestAttributes.substring(0, requestAttributes.length() - 1) + "\r\n" + sessionHeader();
 
                 response.attributes = requestAttributes;
 
+                // Resumes after a PAUSE, the encoder wakes up if nobody else was playing
+                for (RtpDestination track : mTracks) {
+                    if (track != null) track.setPaused(false);
+                }
+
+                // The player can start decoding right away instead of waiting for the next key frame
+                mSession.requestKeyFrame();
+
                 // If no exception has been thrown, we reply with OK
                 response.status = Response.STATUS_OK;
             }
@@ -588,6 +1380,15 @@ public class RtspServer extends Service {
             /* ********************************** Method PAUSE ********************************** */
             /* ********************************************************************************** */
             else if (request.method.equalsIgnoreCase("PAUSE")) {
+                if (mSessionId == null) {
+                    response.status = Response.STATUS_SESSION_NOT_FOUND;
+                    return response;
+                }
+                // The receivers stay attached to the stream, its encoder saves power once nobody plays it
+                for (RtpDestination track : mTracks) {
+                    if (track != null) track.setPaused(true);
+                }
+                response.attributes = sessionHeader();
                 response.status = Response.STATUS_OK;
             }
 
@@ -595,6 +1396,13 @@ public class RtspServer extends Service {
             /* ********************************* Method TEARDOWN ******************************** */
             /* ********************************************************************************** */
             else if (request.method.equalsIgnoreCase("TEARDOWN")) {
+                if (mSessionId == null) {
+                    response.status = Response.STATUS_SESSION_NOT_FOUND;
+                    return response;
+                }
+                // The encoders stop right away if nobody else uses them, the connection stays open
+                response.attributes = sessionHeader();
+                release();
                 response.status = Response.STATUS_OK;
             }
 
@@ -609,89 +1417,313 @@ public class RtspServer extends Service {
         }
     }
 
+    /**
+     * A request parsed in place: the header block is copied once in a buffer reused by
+     * the next requests, and the method, URI and headers are only offsets in it.
+     * Strings are created when they are asked for.
+     */
     static class Request {
-        // Parse method & uri
-        public static final Pattern regexMethod = Pattern.compile("(\\w+) (\\S+) RTSP", Pattern.CASE_INSENSITIVE);
-        // Parse a request header
-        public static final Pattern rexegHeader = Pattern.compile("(\\S+):(.+)", Pattern.CASE_INSENSITIVE);
 
+        // The methods we know are returned as these constants
+        private static final String[] METHODS = {
+                "DESCRIBE", "OPTIONS", "SETUP", "PLAY", "PAUSE", "TEARDOWN",
+                "GET_PARAMETER", "SET_PARAMETER", "ANNOUNCE", "RECORD"
+        };
+
+        private static final int MAX_HEADERS = 32;
+
+        /** The method in upper case, or null if the request could not be parsed. */
         public String method;
-        public String uri;
-        public HashMap<String, String> headers = new HashMap<String, String>();
+
+        private byte[] mData = new byte[1024];
+        private int mLength = 0;
+        private int mUriStart, mUriEnd;
+        private String mUri;
+        // Start and end of the name and of the value of each header
+        private final int[] mHeaders = new int[4 * MAX_HEADERS];
+        private int mHeaderCount = 0;
 
         /**
-         * Parse the method, uri & headers of a RTSP request
+         * Returns the index following the empty line that ends the headers of a request, or -1.
          */
-        public static Request parseRequest(BufferedReader input) throws IOException, IllegalStateException, SocketException {
-            Request request = new Request();
-            String line;
-            Matcher matcher;
-
-            // Parsing request method & uri
-            if ((line = input.readLine()) == null) throw new SocketException("Client disconnected");
-            matcher = regexMethod.matcher(line);
-            matcher.find();
-            request.method = matcher.group(1);
-            request.uri = matcher.group(2);
-
-            // Parsing headers of the request
-            while ((line = input.readLine()) != null && line.length() > 3) {
-                matcher = rexegHeader.matcher(line);
-                matcher.find();
-                request.headers.put(matcher.group(1).toLowerCase(Locale.US), matcher.group(2));
-            }
-            if (line == null) throw new SocketException("Client disconnected");
+        public static int indexOfEnd(byte[] data, int from, int to) {
+            for (int i = from; i < to; i++) {
+                if (data[i] != '\n') continue;
+                if (i + 1 < to && data[i + 1] == '\n') return i + 2;
+                if (i + 2 < to && data[i + 1] == '\r' && data[i + 2] == '\n') return i + 3;
+            }
+            return -1;
+        }
 
-            // It's not an error, it's just easier to follow what's happening in logcat with the request in red
-            Log.e(TAG, request.method + " " + request.uri);
+        /**
+         * Parses the request line and the headers of a RTSP request.
+         *
+         * @param from The first byte of the request line
+         * @param to   The end of the empty line that ends the headers, see {@link #indexOfEnd(byte[], int, int)}
+         * @return false if the request is malformed, {@link #method} is null then
+         */
+        public boolean parse(byte[] data, int from, int to) {
+            int length = to - from;
+            if (mData.length < length) mData = new byte[Math.max(length, 2 * mData.length)];
+            System.arraycopy(data, from, mData, 0, length);
+            mLength = length;
+            mUri = null;
+            mHeaderCount = 0;
+            method = null;
+
+            // Request line: method SP uri SP RTSP/1.0
+            byte[] d = mData;
+            int end = lineEnd(0);
+            int sp1 = indexOf(' ', 0, end);
+            if (sp1 <= 0) return false;
+            int sp2 = indexOf(' ', sp1 + 1, end);
+            if (sp2 <= sp1 + 1 || !startsWith("RTSP/", sp2 + 1, end)) return false;
+            mUriStart = sp1 + 1;
+            mUriEnd = sp2;
+
+            // Headers: name ":" value
+            int line = nextLine(end);
+            while (line < mLength && (end = lineEnd(line)) > line) {
+                int colon = indexOf(':', line, end);
+                if (colon <= line) return false;
+                if (mHeaderCount < MAX_HEADERS) {
+                    int value = colon + 1, valueEnd = end;
+                    while (value < valueEnd && (d[value] == ' ' || d[value] == '\t')) value++;
+                    while (valueEnd > value && (d[valueEnd - 1] == ' ' || d[valueEnd - 1] == '\t')) valueEnd--;
+                    int i = 4 * mHeaderCount++;
+                    mHeaders[i] = line;
+                    mHeaders[i + 1] = colon;
+                    mHeaders[i + 2] = value;
+                    mHeaders[i + 3] = valueEnd;
+                }
+                line = nextLine(end);
+            }
+
+            method = method(sp1);
+            return true;
+        }
+
+        /** Returns the constant of a known method, or a new String. */
+        private String method(int length) {
+            for (String known : METHODS) {
+                if (known.length() == length && regionMatches(known, 0, length)) return known;
+            }
+            return new String(mData, 0, length, LATIN_1).toUpperCase(Locale.US);
+        }
+
+        public String getUri() {
+            if (mUri == null) mUri = new String(mData, mUriStart, mUriEnd - mUriStart, LATIN_1);
+            return mUri;
+        }
+
+        /**
+         * Returns the value of a header, or null if the request does not have it.
+         *
+         * @param name The name of the header, in any case
+         */
+        public String getHeader(String name) {
+            int i = findHeader(name);
+            return i < 0 ? null : new String(mData, mHeaders[i + 2], mHeaders[i + 3] - mHeaders[i + 2], LATIN_1);
+        }
+
+        /**
+         * Returns the value of a header that is a positive number, or def if it is absent or malformed.
+         */
+        public int getIntHeader(String name, int def) {
+            int i = findHeader(name);
+            if (i < 0 || mHeaders[i + 2] == mHeaders[i + 3]) return def;
+            long value = 0;
+            for (int j = mHeaders[i + 2]; j < mHeaders[i + 3]; j++) {
+                int digit = mData[j] - '0';
+                if (digit < 0 || digit > 9 || value > Integer.MAX_VALUE) return def;
+                value = value * 10 + digit;
+            }
+            return value > Integer.MAX_VALUE ? def : (int) value;
+        }
 
-            return request;
+        /**
+         * Returns the length of the body that follows the headers, 0 if there is none.
+         */
+        public int getContentLength() {
+            return getIntHeader("Content-Length", 0);
         }
+
+        private int findHeader(String name) {
+            for (int i = 0; i < 4 * mHeaderCount; i += 4) {
+                if (mHeaders[i + 1] - mHeaders[i] == name.length() && regionMatches(name, mHeaders[i], name.length())) return i;
+            }
+            return -1;
+        }
+
+        /** ASCII case insensitive comparison with the bytes at offset. */
+        private boolean regionMatches(String s, int offset, int length) {
+            for (int i = 0; i < length; i++) {
+                int a = mData[offset + i], b = s.charAt(i);
+                if (a == b) continue;
+                if (a >= 'a' && a <= 'z') a -= 'a' - 'A';
+                if (b >= 'a' && b <= 'z') b -= 'a' - 'A';
+                if (a != b) return false;
+            }
+            return true;
+        }
+
+        private boolean startsWith(String s, int from, int to) {
+            return to - from >= s.length() && regionMatches(s, from, s.length());
+        }
+
+        private int indexOf(char c, int from, int to) {
+            for (int i = from; i < to; i++) {
+                if (mData[i] == c) return i;
+            }
+            return -1;
+        }
+
+        /** Returns the end of the line starting at offset, CR and LF excluded. */
+        private int lineEnd(int offset) {
+            int end = indexOf('\n', offset, mLength);
+            if (end < 0) end = mLength;
+            return end > offset && mData[end - 1] == '\r' ? end - 1 : end;
+        }
+
+        private int nextLine(int lineEnd) {
+            if (lineEnd < mLength && mData[lineEnd] == '\r') lineEnd++;
+            return lineEnd + 1;
+        }
+
+        @Override
+        public String toString() {
+            return method + " " + getUri();
+        }
+    }
+
+    /**
+     * Looks for key followed by a number in s, "trackID=" in an URI for instance.
+     *
+     * @return The number, or -1 if it is not there
+     */
+    static int parseNumber(String s, String key) {
+        int i = indexOfIgnoreCase(s, key);
+        return i < 0 ? -1 : parseDigits(s, i + key.length(), digits(s, i + key.length()));
+    }
+
+    /**
+     * Looks for key followed by a range of numbers in s, "client_port=5000-5001" in a Transport header for instance.
+     *
+     * @param range Receives the two numbers
+     * @return false if the range is not there
+     */
+    static boolean parseRange(String s, String key, int[] range) {
+        int i = indexOfIgnoreCase(s, key);
+        if (i < 0) return false;
+        i += key.length();
+        int dash = digits(s, i);
+        if (dash == i || dash >= s.length() || s.charAt(dash) != '-') return false;
+        int end = digits(s, dash + 1);
+        if (end == dash + 1) return false;
+        range[0] = parseDigits(s, i, dash);
+        range[1] = parseDigits(s, dash + 1, end);
+        return range[0] >= 0 && range[1] >= 0;
+    }
+
+    /** Returns the end of the digits starting at from. */
+    private static int digits(String s, int from) {
+        while (from < s.length() && s.charAt(from) >= '0' && s.charAt(from) <= '9') from++;
+        return from;
+    }
+
+    /** Returns the number written between from and to, or -1 if there is none or if it is too big. */
+    private static int parseDigits(String s, int from, int to) {
+        if (from == to || to - from > 9) return -1;
+        int value = 0;
+        for (int i = from; i < to; i++) value = value * 10 + s.charAt(i) - '0';
+        return value;
     }
 
+    private static int indexOfIgnoreCase(String s, String key) {
+        for (int i = 0; i + key.length() <= s.length(); i++) {
+            if (s.regionMatches(true, i, key, 0, key.length())) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * A response, written in a buffer taken from a pool and given back once it is sent.
+     */
     static class Response {
 
         // Status code definitions
         public static final String STATUS_OK = "200 OK";
         public static final String STATUS_BAD_REQUEST = "400 Bad Request";
         public static final String STATUS_NOT_FOUND = "404 Not Found";
+        public static final String STATUS_SESSION_NOT_FOUND = "454 Session Not Found";
         public static final String STATUS_INTERNAL_SERVER_ERROR = "500 Internal Server Error";
+        public static final String STATUS_SERVICE_UNAVAILABLE = "503 Service Unavailable";
+
+        // Buffers big enough for most responses, a session description included
+        private static final int BUFFER_SIZE = 2048;
+        private static final ArrayBlockingQueue<ByteBuffer> sPool = new ArrayBlockingQueue<ByteBuffer>(16);
 
         public String status = STATUS_INTERNAL_SERVER_ERROR;
         public String content = "";
         public String attributes = "";
 
-        private final Request mRequest;
+        private final int mCSeq;
 
         public Response(Request request) {
-            this.mRequest = request;
+            mCSeq = request != null ? request.getIntHeader("CSeq", -1) : -1;
         }
 
         public Response() {
-            // Be carefull if you modify the send() method because request might be null !
-            mRequest = null;
+            mCSeq = -1;
         }
 
-        public void send(OutputStream output) throws IOException {
-            int seqid = -1;
-
-            try {
-                seqid = Integer.parseInt(mRequest.headers.get("cseq").replace(" ", ""));
-            } catch (Exception e) {
-                Log.e(TAG, "Error parsing CSeq: " + (e.getMessage() != null ? e.getMessage() : ""));
+        /**
+         * Writes the response in a buffer of the pool, it should be given back with {@link #recycle(ByteBuffer)}.
+         */
+        public ByteBuffer encode() {
+            int size = 128 + SERVER_NAME.length() + status.length() + attributes.length() + content.length();
+            ByteBuffer buffer = size <= BUFFER_SIZE ? sPool.poll() : null;
+            if (buffer == null) buffer = ByteBuffer.allocate(Math.max(size, BUFFER_SIZE));
+
+            put(buffer, "RTSP/1.0 ");
+            put(buffer, status);
+            put(buffer, "\r\nServer: ");
+            put(buffer, SERVER_NAME);
+            if (mCSeq >= 0) {
+                put(buffer, "\r\nCseq: ");
+                put(buffer, mCSeq);
             }
+            put(buffer, "\r\nContent-Length: ");
+            put(buffer, content.length());
+            put(buffer, "\r\n");
+            put(buffer, attributes);
+            put(buffer, "\r\n");
+            put(buffer, content);
+            buffer.flip();
+
+            if (DEBUG) Log.d(TAG, new String(buffer.array(), 0, buffer.limit(), LATIN_1).replace("\r", ""));
 
-            String response = "RTSP/1.0 " + status + "\r\n" +
-                    "Server: " + SERVER_NAME + "\r\n" +
-                    (seqid >= 0 ? ("Cseq: " + seqid + "\r\n") : "") +
-                    "Content-Length: " + content.length() + "\r\n" +
-                    attributes +
-                    "\r\n" +
-                    content;
+            return buffer;
+        }
+
+        /** Gives back a buffer returned by {@link #encode()} once it has been sent. */
+        public static void recycle(ByteBuffer buffer) {
+            if (buffer.capacity() == BUFFER_SIZE) {
+                buffer.clear();
+                sPool.offer(buffer);
+            }
+        }
 
-            Log.d(TAG, response.replace("\r", ""));
+        /** Characters are written as ISO-8859-1, the protocol and the session descriptions are ASCII. */
+        private static void put(ByteBuffer buffer, String s) {
+            for (int i = 0, n = s.length(); i < n; i++) {
+                buffer.put((byte) s.charAt(i));
+            }
+        }
 
-            output.write(response.getBytes());
+        private static void put(ByteBuffer buffer, int n) {
+            if (n >= 10) put(buffer, n / 10);
+            buffer.put((byte) ('0' + n % 10));
         }
     }
 
@@ -25,6 +25,7 @@ import static net.majorkernelpanic.streaming.SessionBuilder.AUDIO_AMRNB;
 import static net.majorkernelpanic.streaming.SessionBuilder.AUDIO_NONE;
 import static net.majorkernelpanic.streaming.SessionBuilder.VIDEO_H263;
 import static net.majorkernelpanic.streaming.SessionBuilder.VIDEO_H264;
+import static net.majorkernelpanic.streaming.SessionBuilder.VIDEO_H265;
 import static net.majorkernelpanic.streaming.SessionBuilder.VIDEO_NONE;
 
 import java.io.IOException;
@@ -58,7 +59,9 @@ public class UriParser {
 	 * <ul><li>rtsp://xxx.xxx.xxx.xxx:8086?h264&flash=on</li>
 	 * <li>rtsp://xxx.xxx.xxx.xxx:8086?h263&camera=front&flash=on</li>
 	 * <li>rtsp://xxx.xxx.xxx.xxx:8086?h264=200-20-320-240</li>
-	 * <li>rtsp://xxx.xxx.xxx.xxx:8086?aac</li></ul>
+	 * <li>rtsp://xxx.xxx.xxx.xxx:8086?h265=1000-30-1280-720</li>
+	 * <li>rtsp://xxx.xxx.xxx.xxx:8086?aac</li>
+	 * <li>rtsp://xxx.xxx.xxx.xxx:8086?h264&nack&faststart</li></ul>
 	 * @param uri The URI
 	 * @throws IllegalStateException
 	 * @throws IOException
@@ -67,6 +70,7 @@ public class UriParser {
 	public static Session parse(String uri) throws IllegalStateException, IOException {		
 		SessionBuilder builder = SessionBuilder.getInstance().clone();
 		byte audioApi = 0, videoApi = 0;
+		int retransmission = 0, gopCache = 0;
 
 		List<NameValuePair> params = URLEncodedUtils.parse(URI.create(uri),"UTF-8");
 		if (params.size()>0) {
@@ -162,6 +166,12 @@ public class UriParser {
 					builder.setVideoQuality(quality).setVideoEncoder(VIDEO_H264);
 				}
 
+				// H.265
+				else if (param.getName().equalsIgnoreCase("h265") || param.getName().equalsIgnoreCase("hevc")) {
+					VideoQuality quality = VideoQuality.parseQuality(param.getValue());
+					builder.setVideoQuality(quality).setVideoEncoder(VIDEO_H265);
+				}
+
 				// H.263
 				else if (param.getName().equalsIgnoreCase("h263")) {
 					VideoQuality quality = VideoQuality.parseQuality(param.getValue());
@@ -180,6 +190,34 @@ public class UriParser {
 					builder.setAudioQuality(quality).setAudioEncoder(AUDIO_AAC);
 				}
 
+				// NACK -> the video packets lost by the receivers are sent again
+				// They are kept 500 ms by default, nack=1000 keeps them a second
+				else if (param.getName().equalsIgnoreCase("nack")) {
+					retransmission = 500;
+					if (param.getValue()!=null) {
+						try {
+							retransmission = Integer.parseInt(param.getValue());
+							if (retransmission<0) throw new IllegalStateException();
+						} catch (Exception e) {
+							throw new IllegalStateException("The NACK duration must be a positive integer !");
+						}
+					}
+				}
+
+				// Fast start -> new receivers get the frames since the last key frame at once
+				// At most 2048 KB by default, faststart=4096 keeps up to 4 MB
+				else if (param.getName().equalsIgnoreCase("faststart")) {
+					gopCache = 2048*1024;
+					if (param.getValue()!=null) {
+						try {
+							gopCache = Integer.parseInt(param.getValue())*1024;
+							if (gopCache<0) throw new IllegalStateException();
+						} catch (Exception e) {
+							throw new IllegalStateException("The fast start size must be a positive integer !");
+						}
+					}
+				}
+
 			}
 
 		}
@@ -199,6 +237,11 @@ public class UriParser {
 		if (audioApi>0 && session.getAudioTrack() != null) {
 			session.getAudioTrack().setStreamingMethod(audioApi);
 		}
+
+		if (session.getVideoTrack() != null) {
+			session.getVideoTrack().setRetransmissionCache(retransmission);
+			session.getVideoTrack().setGopCache(gopCache);
+		}
 		
 		return session;
 
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.video;
+
+import net.majorkernelpanic.streaming.rtp.RtpDestination;
+import net.majorkernelpanic.streaming.rtp.RtpSocket;
+
+import android.annotation.SuppressLint;
+import android.media.MediaCodec;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Adapts the bitrate of a MediaCodec encoder to the RTCP Receiver Reports of its receivers.
+ * <p>
+ * The rate follows the worst receiver: it is cut proportionally to the loss reported when
+ * the loss exceeds 10%, cut by 15% when the round trip time grows well above the smallest
+ * one seen (the queues of the path are filling up), and slowly increased again while the
+ * loss stays under 2%. It never exceeds the bitrate of the {@link VideoQuality}.
+ * <p>
+ * It also asks the encoder for a key frame when a receiver sends a PLI or a FIR, or
+ * when a new receiver joins, see {@link #requestSyncFrame()}.
+ * While every receiver is paused, the encoder drops its input and runs at the lowest
+ * bitrate; it is resumed with a key frame as soon as one plays again.
+ * Changing the parameters of a running encoder requires Android 4.4.
+ */
+public class EncoderController implements RtpSocket.FeedbackListener {
+
+    public final static String TAG = "EncoderController";
+
+    /** Reports older than that are ignored, in ms. */
+    private static final long REPORT_TIMEOUT = 5000;
+    /** Minimum time between two decisions, in ms. */
+    private static final long DECISION_INTERVAL = 1000;
+    /** Changes smaller than that are not sent to the encoder. */
+    private static final float MIN_CHANGE = 0.05f;
+    private static final int MIN_BITRATE = 50000;
+    /** Key frames requested less than that after the previous one are not requested again, in ms. */
+    private static final long SYNC_FRAME_INTERVAL = 500;
+
+    private MediaCodec mMediaCodec;
+    private final int mMaxBitrate, mMinBitrate;
+    private int mBitrate, mAppliedBitrate;
+    private int mMinRtt = Integer.MAX_VALUE;
+    private long mLastDecision = 0, mLastSyncFrame = 0;
+    private boolean mSuspended = false;
+
+    /**
+     * @param codec A started encoder
+     * @param bitrate The bitrate the encoder was configured with, in bit/s
+     */
+    public EncoderController(MediaCodec codec, int bitrate) {
+        mMediaCodec = codec;
+        mMaxBitrate = mBitrate = mAppliedBitrate = bitrate;
+        mMinBitrate = Math.min(bitrate, Math.max(bitrate/8, MIN_BITRATE));
+    }
+
+    /** Returns the bitrate currently requested from the encoder, in bit/s. */
+    public synchronized int getBitrate() {
+        return mAppliedBitrate;
+    }
+
+    /** The encoder is being released, stops touching it. */
+    public synchronized void stop() {
+        mMediaCodec = null;
+    }
+
+    @Override
+    public synchronized void onReceiverReport(RtpSocket socket, RtpDestination destination) {
+        if (mMediaCodec == null || mSuspended) return;
+
+        long now = SystemClock.elapsedRealtime();
+        if (now - mLastDecision < DECISION_INTERVAL) return;
+
+        // Looks for the worst receiver
+        int loss = -1, rtt = -1;
+        for (RtpDestination d : socket.getDestinations()) {
+            if (d.getReportTime() == 0 || now - d.getReportTime() > REPORT_TIMEOUT) continue;
+            loss = Math.max(loss, d.getFractionLost());
+            int r = d.getRoundTripTime();
+            if (r >= 0) {
+                rtt = Math.max(rtt, r);
+                mMinRtt = Math.min(mMinRtt, r);
+            }
+        }
+        if (loss < 0) return;
+        mLastDecision = now;
+
+        float fraction = loss/256f;
+        if (fraction > 0.10f) {
+            mBitrate = (int) (mBitrate*(1-fraction/2));
+        } else if (rtt >= 0 && rtt > 2*mMinRtt+50) {
+            mBitrate = (int) (mBitrate*0.85f);
+        } else if (fraction < 0.02f) {
+            mBitrate = (int) (mBitrate*1.08f);
+        }
+        mBitrate = Math.max(mMinBitrate, Math.min(mMaxBitrate, mBitrate));
+
+        // A lossy path is less likely to overflow if the packets of a frame are spread out 
+        if (socket.getPacing() == RtpSocket.PACING_FRAME) {
+            socket.setPacing(RtpSocket.PACING_FRAME, fraction > 0.02f ? 0.9f : 0.5f);
+        }
+
+        if (Math.abs(mBitrate-mAppliedBitrate) > mAppliedBitrate*MIN_CHANGE) {
+            apply(mBitrate);
+        }
+    }
+
+    @Override
+    public void onKeyFrameRequest(RtpSocket socket, RtpDestination destination) {
+        requestSyncFrame();
+    }
+
+    @SuppressLint("NewApi")
+    @Override
+    public synchronized void onPlayingChanged(RtpSocket socket, boolean playing) {
+        if (mMediaCodec == null || Build.VERSION.SDK_INT < 19 || mSuspended == !playing) return;
+        mSuspended = !playing;
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_SUSPEND, mSuspended ? 1 : 0);
+        try {
+            mMediaCodec.setParameters(params);
+        } catch (IllegalStateException e) {
+            return;
+        }
+        Log.d(TAG, mSuspended ? "Nobody plays the stream, encoder suspended" : "Encoder resumed");
+        apply(mSuspended ? mMinBitrate : mBitrate);
+        if (!mSuspended) {
+            // The receiver that resumed can not decode anything before the next key frame
+            mLastSyncFrame = 0;
+            requestSyncFrame();
+        }
+    }
+
+    /**
+     * Asks the encoder for a key frame as soon as possible. The receivers that joined or lost 
+     * packets at the same time all wait for the same key frame: requests that come less than 
+     * 500 ms after the previous one are ignored.
+     * @return false if the request was ignored
+     */
+    @SuppressLint("NewApi")
+    public synchronized boolean requestSyncFrame() {
+        if (mMediaCodec == null || Build.VERSION.SDK_INT < 19) return false;
+        long now = SystemClock.elapsedRealtime();
+        if (mLastSyncFrame != 0 && now - mLastSyncFrame < SYNC_FRAME_INTERVAL) return false;
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        try {
+            mMediaCodec.setParameters(params);
+            mLastSyncFrame = now;
+            return true;
+        } catch (IllegalStateException e) {
+            return false;
+        }
+    }
+
+    @SuppressLint("NewApi")
+    private void apply(int bitrate) {
+        if (Build.VERSION.SDK_INT < 19) return;
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+        try {
+            mMediaCodec.setParameters(params);
+            mAppliedBitrate = bitrate;
+            Log.d(TAG, "Bitrate: " + bitrate / 1000 + " kbps");
+        } catch (IllegalStateException e) {
+            // The encoder has just been stopped
+        }
+    }
+
+}
@@ -86,6 +86,8 @@ public class H264Stream extends VideoStream {
             throw new IllegalStateException("You need to call configure() first !");
         return "m=video " + String.valueOf(getDestinationPorts()[0]) + " RTP/AVP 96\r\n" +
                 "a=rtpmap:96 H264/90000\r\n" +
+                (mPacketizer.getRtpSocket().isRetransmissionEnabled() ? "a=rtcp-fb:96 nack\r\n" : "") +
+                "a=rtcp-fb:96 nack pli\r\n" +
                 "a=fmtp:96 packetization-mode=1;profile-level-id=" + mConfig.getProfileLevel() + ";sprop-parameter-sets=" + mConfig.getB64SPS() + "," + mConfig.getB64PPS() + ";\r\n";
     }
 
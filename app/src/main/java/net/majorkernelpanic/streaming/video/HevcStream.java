@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.streaming.video;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import net.majorkernelpanic.streaming.SessionBuilder;
+import net.majorkernelpanic.streaming.exceptions.ConfNotSupportedException;
+import net.majorkernelpanic.streaming.rtp.H265Packetizer;
+import net.majorkernelpanic.streaming.rtp.NalUnitSplitter;
+
+import android.annotation.SuppressLint;
+import android.content.SharedPreferences.Editor;
+import android.graphics.ImageFormat;
+import android.hardware.Camera.CameraInfo;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Base64;
+import android.util.Log;
+
+/**
+ * A class for streaming H.265 (HEVC) from the camera of an android device using RTP.
+ * You should use a {@link net.majorkernelpanic.streaming.Session} instantiated with {@link SessionBuilder} instead of using this class directly.
+ * Only the MediaCodec API is supported, with the {@link #MODE_MEDIACODEC_API_2} mode, 
+ * and it needs a device with an HEVC encoder running Android 5.0 or later.
+ */
+public class HevcStream extends VideoStream {
+
+    public final static String TAG = "HevcStream";
+
+    public final static String MIME_TYPE = "video/hevc";
+
+    // The VPS, SPS and PPS in base64
+    private String mVps, mSps, mPps;
+
+    /**
+     * Constructs the H.265 stream.
+     * Uses CAMERA_FACING_BACK by default.
+     */
+    public HevcStream() {
+        this(CameraInfo.CAMERA_FACING_BACK);
+    }
+
+    /**
+     * Constructs the H.265 stream.
+     *
+     * @param cameraId Can be either CameraInfo.CAMERA_FACING_BACK or CameraInfo.CAMERA_FACING_FRONT
+     */
+    public HevcStream(int cameraId) {
+        super(cameraId);
+        mMimeType = MIME_TYPE;
+        mCameraImageFormat = ImageFormat.NV21;
+        mPacketizer = new H265Packetizer();
+    }
+
+    /**
+     * Returns a description of the stream using SDP (RFC 7798). It can then be included in an SDP file.
+     */
+    public synchronized String getSessionDescription() throws IllegalStateException {
+        if (mSps == null)
+            throw new IllegalStateException("You need to call configure() first !");
+        return "m=video " + String.valueOf(getDestinationPorts()[0]) + " RTP/AVP 96\r\n" +
+                "a=rtpmap:96 H265/90000\r\n" +
+                (mPacketizer.getRtpSocket().isRetransmissionEnabled() ? "a=rtcp-fb:96 nack\r\n" : "") +
+                "a=rtcp-fb:96 nack pli\r\n" +
+                "a=fmtp:96 sprop-vps=" + mVps + ";sprop-sps=" + mSps + ";sprop-pps=" + mPps + "\r\n";
+    }
+
+    /**
+     * Starts the stream.
+     * This will also open the camera and dispay the preview if {@link #startPreview()} has not aready been called.
+     */
+    public synchronized void start() throws IllegalStateException, IOException {
+        configure();
+        if (!mStreaming) {
+            ((H265Packetizer) mPacketizer).setStreamParameters(
+                    Base64.decode(mVps, Base64.NO_WRAP),
+                    Base64.decode(mSps, Base64.NO_WRAP),
+                    Base64.decode(mPps, Base64.NO_WRAP));
+            super.start();
+        }
+    }
+
+    /**
+     * Configures the stream. You need to call this before calling {@link #getSessionDescription()} to apply
+     * your configuration of the stream.
+     */
+    public synchronized void configure() throws IllegalStateException, IOException {
+        super.configure();
+        if (Build.VERSION.SDK_INT < 21) {
+            throw new ConfNotSupportedException("HEVC needs Android 5.0 or later");
+        }
+        mMode = MODE_MEDIACODEC_API_2;
+        mQuality = mRequestedQuality.clone();
+        testHevc();
+    }
+
+    @Override
+    protected String getEncoderName() {
+        return mEncoderName;
+    }
+
+    /**
+     * Finds an HEVC encoder and the VPS, SPS and PPS it outputs with the configuration of the stream, 
+     * they are saved in the SharedPreferences. Should not be called by the UI thread.
+     */
+    @SuppressLint({"InlinedApi", "NewApi"})
+    private void testHevc() throws IOException {
+        String key = PREF_PREFIX + "hevc-mc-" + mQuality.framerate + "," + mQuality.resX + "," + mQuality.resY;
+
+        if (mSettings != null && mSettings.contains(key)) {
+            String[] s = mSettings.getString(key, "").split(",");
+            if (s.length == 4) {
+                mEncoderName = s[0];
+                mVps = s[1];
+                mSps = s[2];
+                mPps = s[3];
+                return;
+            }
+        }
+
+        CodecManager.Codecs codecs = CodecManager.Selector.findCodecsFormMimeType(MIME_TYPE, false);
+        mEncoderName = codecs.hardwareCodec != null ? codecs.hardwareCodec : codecs.softwareCodec;
+        int colorFormat = codecs.hardwareCodec != null ? codecs.hardwareColorFormat : codecs.softwareColorFormat;
+        if (mEncoderName == null) {
+            throw new ConfNotSupportedException("No HEVC encoder found on this device");
+        }
+
+        // The encoder is fed with a few blank frames until it outputs its parameter sets
+        mVps = mSps = mPps = null;
+        MediaCodec codec = MediaCodec.createByCodecName(mEncoderName);
+        try {
+            MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, mQuality.resX, mQuality.resY);
+            format.setInteger(MediaFormat.KEY_BIT_RATE, mQuality.bitrate);
+            format.setInteger(MediaFormat.KEY_FRAME_RATE, mQuality.framerate);
+            format.setInteger(MediaFormat.KEY_COLOR_FORMAT, colorFormat);
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+            codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            codec.start();
+
+            byte[] frame = new byte[mQuality.resX * mQuality.resY * 3 / 2];
+            ByteBuffer[] inputs = codec.getInputBuffers();
+            ByteBuffer[] outputs = codec.getOutputBuffers();
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            long deadline = System.currentTimeMillis() + 3000, pts = 0;
+
+            while ((mVps == null || mSps == null || mPps == null) && System.currentTimeMillis() < deadline) {
+                int index = codec.dequeueInputBuffer(10000);
+                if (index >= 0) {
+                    ByteBuffer input = inputs[index];
+                    input.clear();
+                    input.put(frame, 0, Math.min(frame.length, input.remaining()));
+                    codec.queueInputBuffer(index, 0, input.position(), pts, 0);
+                    pts += 1000000 / mQuality.framerate;
+                }
+                index = codec.dequeueOutputBuffer(info, 10000);
+                if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    ByteBuffer csd = codec.getOutputFormat().getByteBuffer("csd-0");
+                    if (csd != null) parseParameterSets(csd);
+                } else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                    outputs = codec.getOutputBuffers();
+                } else if (index >= 0) {
+                    ByteBuffer output = outputs[index];
+                    output.position(info.offset);
+                    output.limit(info.offset + info.size);
+                    // Some encoders only put them in front of the first key frame
+                    parseParameterSets(output);
+                    codec.releaseOutputBuffer(index, false);
+                }
+            }
+        } catch (RuntimeException e) {
+            throw new ConfNotSupportedException(e.getMessage());
+        } finally {
+            try {
+                codec.stop();
+            } catch (Exception ignore) {}
+            codec.release();
+        }
+
+        if (mVps == null || mSps == null || mPps == null) {
+            throw new ConfNotSupportedException("The HEVC encoder did not output its parameter sets");
+        }
+        Log.i(TAG, "HEVC encoder: " + mEncoderName);
+
+        if (mSettings != null) {
+            Editor editor = mSettings.edit();
+            editor.putString(key, mEncoderName + "," + mVps + "," + mSps + "," + mPps);
+            editor.commit();
+        }
+    }
+
+    /** Looks for the VPS, SPS and PPS in an Annex B buffer. */
+    private void parseParameterSets(ByteBuffer data) {
+        NalUnitSplitter splitter = new NalUnitSplitter();
+        int count = splitter.split(data);
+        for (int i = 0; i < count; i++) {
+            int start = splitter.getStart(i), end = splitter.getEnd(i);
+            byte[] nal = new byte[end - start];
+            for (int j = 0; j < nal.length; j++) nal[j] = data.get(start + j);
+            String b64 = Base64.encodeToString(nal, Base64.NO_WRAP);
+            switch ((nal[0] >> 1) & 0x3F) {
+                case 32: mVps = b64; break;
+                case 33: mSps = b64; break;
+                case 34: mPps = b64; break;
+            }
+        }
+    }
+
+}
@@ -81,6 +81,7 @@ public abstract class VideoStream extends MediaStream {
     protected int mEncoderColorFormat;
     protected int mCameraImageFormat;
     protected int mMaxFps = 0;
+    protected EncoderController mEncoderController = null;
 
     /**
      * Don't use this class directly.
@@ -284,6 +285,35 @@ public abstract class VideoStream extends MediaStream {
         Log.d(TAG, "Stream configuration: FPS: " + mQuality.framerate + " Width: " + mQuality.resX + " Height: " + mQuality.resY);
     }
 
+    /**
+     * Keeps the packets sent during the last duration ms so that the ones receivers report 
+     * as lost in RTCP NACKs are sent again. Every packet is then copied once more.
+     *
+     * @param duration 0 to disable retransmissions, which is the default
+     */
+    public void setRetransmissionCache(int duration) {
+        mPacketizer.getRtpSocket().setRetransmissionCache(duration);
+    }
+
+    /**
+     * Keeps the packets sent since the last key frame, so that new receivers can start decoding
+     * right away instead of waiting for the next one. Every packet is then copied once more.
+     *
+     * @param size The maximum number of bytes kept, 0 to disable the cache, which is the default
+     */
+    public void setGopCache(int size) {
+        mPacketizer.getRtpSocket().setGopCache(size);
+    }
+
+    /**
+     * Asks the encoder for a key frame, so that a receiver that just joined or that lost 
+     * packets does not have to wait for the next one. Requests close to each other only 
+     * produce one key frame. Only works with the MediaCodec API on Android 4.4 and later.
+     */
+    public synchronized void requestKeyFrame() {
+        if (mEncoderController != null) mEncoderController.requestSyncFrame();
+    }
+
     /**
      * Stops the stream.
      */
@@ -295,6 +325,11 @@ public abstract class VideoStream extends MediaStream {
             if (mMode == MODE_MEDIACODEC_API_2) {
                 mSurfaceView.removeMediaCodecSurface();
             }
+            if (mEncoderController != null) {
+                mPacketizer.getRtpSocket().setFeedbackListener(null);
+                mEncoderController.stop();
+                mEncoderController = null;
+            }
             super.stop();
             // We need to restart the preview
             if (!mCameraOpenedManually) {
@@ -396,13 +431,20 @@ public abstract class VideoStream extends MediaStream {
         }
 
         // The packetizer encapsulates the bit stream in an RTP stream and send it over the network
-        mPacketizer.setDestination(mDestination, mRtpPort, mRtcpPort);
         mPacketizer.setInputStream(mReceiver.getInputStream());
         mPacketizer.start();
 
         mStreaming = true;
     }
 
+    /**
+     * Returns the name of the encoder fed with a Surface in the {@link #MODE_MEDIACODEC_API_2} mode,
+     * it must support the mime type of the stream.
+     */
+    protected String getEncoderName() {
+        return EncoderDebugger.debug(mSettings, mQuality.resX, mQuality.resY).getEncoderName();
+    }
+
     /**
      * Video encoding is done by a MediaCodec.
      */
@@ -485,10 +527,13 @@ public abstract class VideoStream extends MediaStream {
         mCamera.setPreviewCallbackWithBuffer(callback);
 
         // The packetizer encapsulates the bit stream in an RTP stream and send it over the network
-        mPacketizer.setDestination(mDestination, mRtpPort, mRtcpPort);
         mPacketizer.setInputStream(new MediaCodecInputStream(mMediaCodec));
         mPacketizer.start();
 
+        // The bitrate follows the RTCP Receiver Reports
+        mEncoderController = new EncoderController(mMediaCodec, mQuality.bitrate);
+        mPacketizer.getRtpSocket().setFeedbackListener(mEncoderController);
+
         mStreaming = true;
 
     }
@@ -509,10 +554,8 @@ public abstract class VideoStream extends MediaStream {
         // Estimates the framerate of the camera
         measureFramerate();
 
-        EncoderDebugger debugger = EncoderDebugger.debug(mSettings, mQuality.resX, mQuality.resY);
-
-        mMediaCodec = MediaCodec.createByCodecName(debugger.getEncoderName());
-        MediaFormat mediaFormat = MediaFormat.createVideoFormat("video/avc", mQuality.resX, mQuality.resY);
+        mMediaCodec = MediaCodec.createByCodecName(getEncoderName());
+        MediaFormat mediaFormat = MediaFormat.createVideoFormat(mMimeType, mQuality.resX, mQuality.resY);
         mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, mQuality.bitrate);
         mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, mQuality.framerate);
         mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
@@ -523,10 +566,13 @@ public abstract class VideoStream extends MediaStream {
         mMediaCodec.start();
 
         // The packetizer encapsulates the bit stream in an RTP stream and send it over the network
-        mPacketizer.setDestination(mDestination, mRtpPort, mRtcpPort);
         mPacketizer.setInputStream(new MediaCodecInputStream(mMediaCodec));
         mPacketizer.start();
 
+        // The bitrate follows the RTCP Receiver Reports
+        mEncoderController = new EncoderController(mMediaCodec, mQuality.bitrate);
+        mPacketizer.getRtpSocket().setFeedbackListener(mEncoderController);
+
         mStreaming = true;
 
     }